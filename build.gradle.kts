@@ -32,6 +32,7 @@ dependencies {
     // Spring
     implementation("org.springframework.data:spring-data-jpa:2.7.11")
     implementation("org.springframework:spring-beans")
+    implementation("org.springframework:spring-tx")
 
     // Lombok
     compileOnly("org.projectlombok:lombok:1.18.26")
@@ -45,6 +46,13 @@ dependencies {
     // Utils
     implementation("org.apache.commons:commons-lang3:3.12.0")
 
+    // Optional full-text functions (com.gisgro.hibernate)
+    compileOnly("org.hibernate:hibernate-core")
+
+    // Optional Lucene index (com.gisgro.lucene)
+    compileOnly("org.apache.lucene:lucene-core:9.4.2")
+    testImplementation("org.apache.lucene:lucene-core:9.4.2")
+
     // Test
     testImplementation(platform("org.junit:junit-bom:5.10.2"))
     testImplementation("org.junit.jupiter:junit-jupiter")
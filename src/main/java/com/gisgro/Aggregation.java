@@ -0,0 +1,360 @@
+package com.gisgro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.gisgro.exceptions.InvalidFieldException;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.model.EntityMetadata;
+import com.gisgro.model.SearchType;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Value;
+import org.apache.commons.lang3.ClassUtils;
+
+import javax.persistence.Tuple;
+import javax.persistence.criteria.Expression;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.gisgro.JPASearchFunctions.getPath;
+import static com.gisgro.JoinRegistry.CollectionJoins.SHARED;
+
+/**
+ * Aggregates of {@code options.aggregates}, grouped by the fields of
+ * {@code options.groupBy}, computed by the database over the rows matching
+ * the filter, see {@link JPASearchExecutor#aggregate(CompiledFilter, Aggregation)}.
+ * <pre>
+ * "options": {
+ *   "groupBy": ["status", {"field": "created", "bucket": "day"}],
+ *   "aggregates": {"count": ["count"], "total": ["sum", "amount"]}
+ * }
+ * </pre>
+ * Each result row is a map of the group keys and the aggregate names. The
+ * fields are validated like the selected fields: only searchable fields can
+ * be grouped and aggregated.
+ */
+@Getter
+@AllArgsConstructor
+public class Aggregation {
+    private static final Set<SearchType> TEMPORAL_TYPES = Set.of(
+            SearchType.DATE,
+            SearchType.LOCALDATE,
+            SearchType.LOCALDATETIME,
+            SearchType.OFFSETDATETIME
+    );
+
+    private final List<Group> groups;
+    /**
+     * Aggregates by their names, in the order of the payload.
+     */
+    private final Map<String, Aggregate> aggregates;
+
+    public enum Bucket {
+        /**
+         * Grouped by the hour, returned as the {@link LocalDateTime} of its start.
+         */
+        HOUR,
+        /**
+         * Grouped by the day, returned as a {@link LocalDate}.
+         */
+        DAY,
+        /**
+         * Grouped by the month, returned as the {@link LocalDate} of its first day.
+         */
+        MONTH
+    }
+
+    public enum AggregateFunction {
+        COUNT,
+        SUM,
+        AVG,
+        MIN,
+        MAX
+    }
+
+    /**
+     * Field grouped by, its values truncated to {@code bucket} if not {@code null}.
+     */
+    @Value
+    public static class Group {
+        String key;
+        JPASearchCore.Descriptor descriptor;
+        Bucket bucket;
+    }
+
+    /**
+     * Aggregate of a field, or of the rows for a {@code count} without a field.
+     */
+    @Value
+    public static class Aggregate {
+        AggregateFunction function;
+        String key;
+        JPASearchCore.Descriptor descriptor;
+    }
+
+    /**
+     * Returns the aggregation of the payload, or {@code null} if it does not request aggregates.
+     */
+    public static Aggregation load(
+            JsonNode filterPayload,
+            Class<?> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        var options = filterPayload.get("options");
+        var aggregatesNode = options == null ? null : options.get("aggregates");
+        if (aggregatesNode == null || aggregatesNode.isNull()) {
+            return null;
+        }
+        if (!aggregatesNode.isObject() || aggregatesNode.isEmpty()) {
+            throw new JPASearchException("Invalid aggregates: " + aggregatesNode);
+        }
+
+        var metadata = EntityMetadata.of(entityClass, searchableSubclasses);
+        var aggregates = new LinkedHashMap<String, Aggregate>();
+        var names = aggregatesNode.fieldNames();
+        while (names.hasNext()) {
+            var name = names.next();
+            var aggregate = loadAggregate(aggregatesNode.get(name), throwsIfNotExistsOrNotSearchable, metadata);
+            if (aggregate != null) {
+                aggregates.put(name, aggregate);
+            }
+        }
+
+        var groups = new ArrayList<Group>();
+        var groupByNode = options.get("groupBy");
+        if (groupByNode != null && !groupByNode.isNull()) {
+            if (groupByNode.isArray()) {
+                for (var itm : groupByNode) {
+                    var group = loadGroup(itm, throwsIfNotExistsOrNotSearchable, metadata);
+                    if (group != null) {
+                        groups.add(group);
+                    }
+                }
+            } else {
+                var group = loadGroup(groupByNode, throwsIfNotExistsOrNotSearchable, metadata);
+                if (group != null) {
+                    groups.add(group);
+                }
+            }
+        }
+
+        var aggregation = new Aggregation(Collections.unmodifiableList(groups), Collections.unmodifiableMap(aggregates));
+        aggregation.checkCollections();
+        return aggregation;
+    }
+
+    /**
+     * Checks that the fields in collections are in one collection, joined into
+     * the query, and that no aggregate over the entities is repeated by it: a
+     * sum of an entity field would add it once per element.
+     */
+    private void checkCollections() {
+        var collections = new HashSet<String>();
+        for (var group : groups) {
+            collections.add(collectionOf(group.descriptor));
+        }
+        for (var aggregate : aggregates.values()) {
+            if (aggregate.descriptor != null) {
+                collections.add(collectionOf(aggregate.descriptor));
+            }
+        }
+        collections.remove(null);
+        if (collections.size() > 1) {
+            throw new JPASearchException("Aggregation fields are in more than one collection: " + collections);
+        }
+        if (collections.isEmpty()) {
+            return;
+        }
+
+        aggregates.forEach((name, aggregate) -> {
+            var function = aggregate.function;
+            if (aggregate.descriptor != null && collectionOf(aggregate.descriptor) == null
+                    && (function == AggregateFunction.SUM || function == AggregateFunction.AVG
+                    || function == AggregateFunction.COUNT)) {
+                throw new InvalidFieldException(
+                        "Aggregate [" + name + "] of a field outside of the collection "
+                                + collections.iterator().next() + " would repeat it per element",
+                        aggregate.key
+                );
+            }
+        });
+    }
+
+    /**
+     * Returns the path of the collection the field is in, or {@code null}.
+     */
+    private static String collectionOf(JPASearchCore.Descriptor descriptor) {
+        var path = descriptor.getFieldPath();
+        var collection = new StringBuilder();
+        for (var i = 0; i < path.size() - 1; i++) {
+            if (i > 0) {
+                collection.append('.');
+            }
+            collection.append(path.get(i).getName());
+            if (Collection.class.isAssignableFrom(path.get(i).getType())) {
+                return collection.toString();
+            }
+        }
+        return null;
+    }
+
+    private static Aggregate loadAggregate(
+            JsonNode node,
+            boolean throwsIfNotExistsOrNotSearchable,
+            EntityMetadata metadata
+    ) {
+        if (!node.isArray() || node.isEmpty() || node.size() > 2 || !node.get(0).isTextual()) {
+            throw new JPASearchException("Invalid aggregate: " + node);
+        }
+
+        AggregateFunction function;
+        try {
+            function = AggregateFunction.valueOf(node.get(0).asText().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new JPASearchException("Unknown aggregate: " + node.get(0).asText());
+        }
+        if (node.size() == 1) {
+            if (function != AggregateFunction.COUNT) {
+                throw new JPASearchException("Invalid aggregate: " + node);
+            }
+            return new Aggregate(function, null, null);
+        }
+
+        var key = node.get(1).asText();
+        var descriptor = JPASearchCore.loadDescriptor(key, throwsIfNotExistsOrNotSearchable, false, false, metadata);
+        if (descriptor == null) {
+            return null;
+        }
+        var type = ClassUtils.primitiveToWrapper(descriptor.getFieldType());
+        if ((function == AggregateFunction.SUM || function == AggregateFunction.AVG) && !Number.class.isAssignableFrom(type)) {
+            throw new InvalidFieldException("Field [" + key + "] is not numeric", key);
+        }
+        return new Aggregate(function, key, descriptor);
+    }
+
+    private static Group loadGroup(
+            JsonNode node,
+            boolean throwsIfNotExistsOrNotSearchable,
+            EntityMetadata metadata
+    ) {
+        String key;
+        Bucket bucket = null;
+        if (node.isTextual()) {
+            key = node.asText();
+        } else if (node.isObject() && node.path("field").isTextual() && node.path("bucket").isTextual()) {
+            key = node.get("field").asText();
+            try {
+                bucket = Bucket.valueOf(node.get("bucket").asText().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new JPASearchException("Unknown bucket: " + node.get("bucket").asText());
+            }
+        } else {
+            throw new JPASearchException("Invalid groupBy: " + node);
+        }
+
+        var descriptor = JPASearchCore.loadDescriptor(key, throwsIfNotExistsOrNotSearchable, false, false, metadata);
+        if (descriptor == null) {
+            return null;
+        }
+        // a temporal search type on e.g. a string column cannot be truncated by the database
+        if (bucket != null && (!TEMPORAL_TYPES.contains(descriptor.getSearchType())
+                || !descriptor.getSearchType().getDefaultClasses().contains(descriptor.getFieldType()))) {
+            throw new InvalidFieldException("Field [" + key + "] is not a date or date-time", key);
+        }
+        return new Group(key, descriptor, bucket);
+    }
+
+    /**
+     * Returns whether a grouped or aggregated field is in a collection, so
+     * that the rows of the query are its elements rather than the entities.
+     */
+    boolean joinsCollections() {
+        for (var group : groups) {
+            if (collectionOf(group.descriptor) != null) {
+                return true;
+            }
+        }
+        for (var aggregate : aggregates.values()) {
+            if (aggregate.descriptor != null && collectionOf(aggregate.descriptor) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the expressions grouped by: the field, or the parts of its bucket
+     * (year, month, day and hour) extracted by the database. All the fields
+     * in the collection refer to the same element.
+     */
+    List<Expression<?>> toGroupExpressions(QueryContext context) {
+        var cb = context.getCb();
+        var expressions = new ArrayList<Expression<?>>();
+        for (var group : groups) {
+            var path = getPath(cb, context.getRoot(), group.descriptor, context.getJoins(), SHARED);
+            if (group.bucket == null) {
+                expressions.add(path);
+                continue;
+            }
+            expressions.add(cb.function("year", Integer.class, path));
+            expressions.add(cb.function("month", Integer.class, path));
+            if (group.bucket != Bucket.MONTH) {
+                expressions.add(cb.function("day", Integer.class, path));
+            }
+            if (group.bucket == Bucket.HOUR) {
+                expressions.add(cb.function("hour", Integer.class, path));
+            }
+        }
+        return expressions;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    List<Expression<?>> toAggregateExpressions(QueryContext context) {
+        var cb = context.getCb();
+        var expressions = new ArrayList<Expression<?>>(aggregates.size());
+        for (var aggregate : aggregates.values()) {
+            if (aggregate.descriptor == null) {
+                expressions.add(joinsCollections() ? cb.countDistinct(context.getRoot()) : cb.count(context.getRoot()));
+                continue;
+            }
+
+            Expression path = getPath(cb, context.getRoot(), aggregate.descriptor, context.getJoins(), SHARED);
+            expressions.add(switch (aggregate.function) {
+                case COUNT -> cb.count(path);
+                case SUM -> cb.sum(path);
+                case AVG -> cb.avg(path);
+                case MIN -> cb.least(path);
+                case MAX -> cb.greatest(path);
+            });
+        }
+        return expressions;
+    }
+
+    Map<String, Object> toRow(Tuple tuple) {
+        var row = new LinkedHashMap<String, Object>();
+        var i = 0;
+        for (var group : groups) {
+            if (group.bucket == null) {
+                row.put(group.key, tuple.get(i++));
+                continue;
+            }
+
+            var year = (Number) tuple.get(i++);
+            var month = (Number) tuple.get(i++);
+            var day = group.bucket == Bucket.MONTH ? null : (Number) tuple.get(i++);
+            var hour = group.bucket == Bucket.HOUR ? (Number) tuple.get(i++) : null;
+            if (year == null) {
+                row.put(group.key, null);
+            } else if (group.bucket == Bucket.HOUR) {
+                row.put(group.key, LocalDateTime.of(year.intValue(), month.intValue(), day.intValue(), hour.intValue(), 0));
+            } else {
+                row.put(group.key, LocalDate.of(year.intValue(), month.intValue(), day == null ? 1 : day.intValue()));
+            }
+        }
+        for (var name : aggregates.keySet()) {
+            row.put(name, tuple.get(i++));
+        }
+        return row;
+    }
+}
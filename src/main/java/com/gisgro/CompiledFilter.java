@@ -0,0 +1,794 @@
+package com.gisgro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.gisgro.exceptions.InvalidFieldException;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.model.EntityMetadata;
+import com.gisgro.model.Operator;
+import com.gisgro.model.SearchType;
+import com.gisgro.model.TrimMode;
+import com.gisgro.utils.ConversionUtils;
+import com.gisgro.utils.JPAFuncWithObjects;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Value;
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.springframework.data.jpa.domain.Specification;
+
+import javax.persistence.criteria.*;
+import java.lang.reflect.Field;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+import static com.gisgro.JPASearchFunctions.getPath;
+
+/**
+ * Filter expression parsed from the JSON payload into an immutable tree.
+ * <p>
+ * Operators and field descriptors are resolved (and validated) once when the
+ * filter is compiled, so turning the filter into a {@link Predicate} only calls
+ * the {@link CriteriaBuilder}. A compiled filter does not hold any per-query
+ * state, so it can be shared between the data and count queries of a page
+ * and cached between requests.
+ */
+@Getter
+@AllArgsConstructor
+public class CompiledFilter<T> {
+    private final Class<T> entityClass;
+    private final EntityMetadata metadata;
+    /**
+     * Shape of the filter, see {@link #shapeOf(JsonNode)}.
+     */
+    private final String fingerprint;
+    /**
+     * How references to collections are joined, see {@link JoinRegistry}.
+     */
+    private final JoinRegistry.CollectionJoins collectionJoins;
+    /**
+     * Root of the expression tree, or {@code null} if the payload had no filter.
+     */
+    private final Node root;
+    /**
+     * Values of the filter, indexed by {@link Literal#getSlot()}.
+     */
+    private final Object[] values;
+    /**
+     * In-memory conditions of the nodes evaluated so far, built once per filter.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Map<Node, InMemoryFilter.Condition> conditions = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    public static <T> CompiledFilter<T> compile(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        return compile(
+                filterPayload,
+                entityClass,
+                EntityMetadata.of(entityClass, searchableSubclasses),
+                throwsIfNotExistsOrNotSearchable,
+                shapeOf(filterPayload)
+        );
+    }
+
+    static <T> CompiledFilter<T> compile(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            EntityMetadata metadata,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Shape shape
+    ) {
+        var filterExpression = filterPayload.get("filter");
+        var root = filterExpression == null || filterExpression.isNull()
+                ? null
+                : FilterNormalizer.normalize(
+                        new Compiler(metadata, throwsIfNotExistsOrNotSearchable).compileExpression(filterExpression)
+                );
+
+        return new CompiledFilter<>(
+                entityClass,
+                metadata,
+                shape.getFingerprint(),
+                JoinRegistry.CollectionJoins.load(filterPayload),
+                root,
+                convertValues(root, shape.getValues())
+        );
+    }
+
+    /**
+     * Returns a filter with the same expression tree, bound to another set of values.
+     */
+    public CompiledFilter<T> withValues(Object[] values) {
+        return new CompiledFilter<>(entityClass, metadata, fingerprint, collectionJoins, root, convertValues(root, values));
+    }
+
+    /**
+     * Converts the values compared with a field to the type of the field, so
+     * that the database compares them without casting the column.
+     */
+    private static Object[] convertValues(Node root, Object[] values) {
+        var converted = values.clone();
+        convertSlots(root, converted);
+        return converted;
+    }
+
+    private static void convertSlots(Node node, Object[] values) {
+        if (node instanceof Literal literal && literal.type != null) {
+            var field = literal.field;
+            try {
+                var value = values[literal.slot];
+                if (literal.valueType != null) {
+                    // a value of a temporal value operator, always in ISO-8601
+                    value = ConversionUtils.convert(value, literal.valueType, "");
+                }
+                value = ConversionUtils.convert(
+                        value,
+                        literal.type,
+                        field == null ? "" : field.descriptor.getSearchable().datePattern()
+                );
+                if (field != null && value instanceof String text) {
+                    if (trimsInput(field.descriptor)) {
+                        text = text.trim();
+                    }
+                    value = field.lowerCase ? text.toLowerCase(Locale.ROOT) : text;
+                }
+                values[literal.slot] = value;
+            } catch (IllegalArgumentException e) {
+                if (field == null) {
+                    throw new JPASearchException("Invalid value: " + e.getMessage());
+                }
+                throw new InvalidFieldException(
+                        "Invalid value for field [" + field.key + "]: " + e.getMessage(),
+                        field.key
+                );
+            }
+        } else if (node instanceof Call call) {
+            for (var argument : call.arguments) {
+                convertSlots(argument, values);
+            }
+        } else if (node instanceof Any any && any.filter != null) {
+            convertSlots(any.filter, values);
+        }
+    }
+
+    /**
+     * Extracts the shape of the filter: a fingerprint of its operators, fields
+     * and arity with the values replaced by placeholders, and the values in the
+     * same order as the compiler assigns their slots.
+     */
+    public static Shape shapeOf(JsonNode filterPayload) {
+        var fingerprint = new StringBuilder();
+        var values = new ArrayList<>();
+        var filterExpression = filterPayload.get("filter");
+        if (filterExpression != null && !filterExpression.isNull()) {
+            extractShape(filterExpression, fingerprint, values);
+        }
+        return new Shape(fingerprint.toString(), values.toArray());
+    }
+
+    private static void extractShape(JsonNode node, StringBuilder fingerprint, List<Object> values) {
+        if (!node.isArray()) {
+            var value = scalarValue(node);
+            values.add(value);
+            fingerprint.append(
+                    value == null ? "null"
+                            : value instanceof String ? "?s"
+                            : value instanceof Boolean ? "?b"
+                            : "?n"
+            );
+            return;
+        }
+
+        // field names and the collection of "any" are part of the shape, not values
+        var isField = node.size() > 1 && node.get(0).isTextual()
+                && (node.get(0).textValue().equals("field") || node.get(0).textValue().equals("any"));
+        fingerprint.append('[');
+        for (var i = 0; i < node.size(); i++) {
+            var child = node.get(i);
+            if (i > 0) {
+                fingerprint.append(',');
+            }
+            if (child.isTextual() && (i == 0 || isField)) {
+                fingerprint.append(child);
+            } else {
+                extractShape(child, fingerprint, values);
+            }
+        }
+        fingerprint.append(']');
+    }
+
+    private static Object scalarValue(JsonNode node) {
+        if (node.isTextual()) {
+            return node.asText();
+        } else if (node.isInt()) {
+            return node.asInt();
+        } else if (node.isLong()) {
+            return node.asLong();
+        } else if (node.isDouble()) {
+            return node.asDouble();
+        } else if (node.isBoolean()) {
+            return node.asBoolean();
+        } else if (node.isNull()) {
+            return null;
+        } else {
+            throw new JPASearchException("unexpected: " + node);
+        }
+    }
+
+    private static final Map<JPAFuncWithObjects<?>, Class<?>> TEMPORAL_VALUES = Map.of(
+            JPASearchFunctions.DATE, ZonedDateTime.class,
+            JPASearchFunctions.LOCAL_DATE, LocalDate.class,
+            JPASearchFunctions.LOCAL_DATE_TIME, LocalDateTime.class,
+            JPASearchFunctions.OFFSET_DATE_TIME, OffsetDateTime.class
+    );
+
+    @AllArgsConstructor
+    private static class Compiler {
+        private final EntityMetadata metadata;
+        private final boolean throwsIfNotExistsOrNotSearchable;
+        private int nextSlot;
+        /**
+         * Key prefix and path depth of the collection element inside "any", empty on the root.
+         */
+        private String prefix;
+        private int depth;
+
+        private Compiler(EntityMetadata metadata, boolean throwsIfNotExistsOrNotSearchable) {
+            this(metadata, throwsIfNotExistsOrNotSearchable, 0, "", 0);
+        }
+
+        private Node compileExpression(JsonNode node) {
+            if (!node.isArray() || node.isEmpty() || !node.get(0).isTextual()) {
+                throw new JPASearchException("Invalid expression");
+            }
+
+            var op = Operator.load(node.get(0).textValue());
+
+            if (op.getName().equals("field")) {
+                if (node.size() < 2 || !node.get(1).isTextual()) {
+                    throw new JPASearchException("Invalid field reference: " + node);
+                }
+                var key = prefix + node.get(1).asText();
+                var descriptor = JPASearchCore.loadDescriptor(
+                        key,
+                        throwsIfNotExistsOrNotSearchable,
+                        false,
+                        false,
+                        metadata
+                );
+                if (descriptor != null && depth > 0) {
+                    // inside "any" the path is resolved from the collection element
+                    var path = descriptor.getFieldPath();
+                    descriptor = new JPASearchCore.Descriptor(
+                            descriptor.getSearchType(),
+                            path.subList(depth, path.size()),
+                            descriptor.getSearchable(),
+                            descriptor.getFieldType()
+                    );
+                }
+                return new FieldRef(key, descriptor, false);
+            } else if (op.getName().equals("any")) {
+                return compileAny(node);
+            }
+
+            var valueType = op.getObjFunction() == null ? null : TEMPORAL_VALUES.get(op.getObjFunction());
+            if (valueType != null) {
+                if (node.size() != 2 || !node.get(1).isTextual()) {
+                    throw new JPASearchException("Invalid " + op.getName() + ": " + node);
+                }
+                // parsed into a typed value, converted to the type of the compared field if any
+                var type = op.getObjFunction() == JPASearchFunctions.DATE ? Date.class : valueType;
+                return new Literal(nextSlot++, false, null, type, valueType);
+            }
+
+            var arguments = new ArrayList<Node>(node.size() - 1);
+            for (var i = 1; i < node.size(); i++) {
+                arguments.add(compileValue(op, node.get(i)));
+            }
+            if (op.getExprFunction() == JPASearchFunctions.LOWER && arguments.size() == 1
+                    && arguments.get(0) instanceof FieldRef field && hasLowerCaseField(field)) {
+                return lowerCaseField(field);
+            }
+            if (op.getExprFunction() == JPASearchFunctions.MATCH) {
+                checkFullText(node, arguments);
+            }
+            typeLiterals(op, arguments);
+
+            return new Call(op, Collections.unmodifiableList(arguments));
+        }
+
+        private Node compileAny(JsonNode node) {
+            if (node.size() < 2 || node.size() > 3 || !node.get(1).isTextual()) {
+                throw new JPASearchException("Invalid any: " + node);
+            }
+
+            var key = prefix + node.get(1).asText();
+            var path = metadata.getCollections().get(key);
+            if (path == null) {
+                throw new InvalidFieldException("Field [" + key + "] is not a searchable collection", key);
+            }
+
+            var outerPrefix = prefix;
+            var outerDepth = depth;
+            prefix = key + ".";
+            depth = path.size();
+            try {
+                return new Any(
+                        key,
+                        path.subList(outerDepth, path.size()),
+                        node.size() == 3 ? compileExpression(node.get(2)) : null
+                );
+            } finally {
+                prefix = outerPrefix;
+                depth = outerDepth;
+            }
+        }
+
+        /**
+         * Checks that {@code match} compares a full-text field with a value.
+         */
+        private static void checkFullText(JsonNode node, List<Node> arguments) {
+            if (arguments.size() != 2 || !(arguments.get(0) instanceof FieldRef field)) {
+                throw new JPASearchException("Invalid match: " + node);
+            }
+            if (field.descriptor != null
+                    && (field.descriptor.getSearchable() == null || !field.descriptor.getSearchable().fullText())) {
+                throw new InvalidFieldException("Field [" + field.key + "] is not full-text searchable", field.key);
+            }
+        }
+
+        private static boolean hasLowerCaseField(FieldRef field) {
+            return field.descriptor != null
+                    && field.descriptor.getSearchable() != null
+                    && !field.descriptor.getSearchable().lowerCaseField().isEmpty();
+        }
+
+        /**
+         * Returns a reference to the lower-cased field declared for {@code field},
+         * replacing {@code ["lower", field]} so that the column is not wrapped
+         * in {@code lower()}.
+         */
+        private static FieldRef lowerCaseField(FieldRef field) {
+            var descriptor = field.descriptor;
+            var path = new ArrayList<>(descriptor.getFieldPath());
+            var source = path.get(path.size() - 1);
+            var name = descriptor.getSearchable().lowerCaseField();
+            var target = FieldUtils.getField(source.getDeclaringClass(), name, true);
+            if (target == null || target.getType() != String.class) {
+                throw new JPASearchException(
+                        "Invalid lowerCaseField of [" + field.key + "]: " + name + " is not a String field"
+                );
+            }
+            path.set(path.size() - 1, target);
+            return new FieldRef(
+                    field.key,
+                    new JPASearchCore.Descriptor(
+                            SearchType.STRING,
+                            Collections.unmodifiableList(path),
+                            descriptor.getSearchable(),
+                            String.class
+                    ),
+                    true
+            );
+        }
+
+        /**
+         * Types the literals compared with a field by a built-in comparison
+         * operator, see {@link #convertValues(Node, Object[])}. All values
+         * compared with a lower-cased field are lower-cased, and with a field
+         * trimmed on input trimmed.
+         */
+        private void typeLiterals(Operator op, List<Node> arguments) {
+            if (!arguments.isEmpty() && arguments.get(0) instanceof FieldRef field
+                    && (field.lowerCase || trimsInput(field.descriptor))) {
+                for (var i = 1; i < arguments.size(); i++) {
+                    if (arguments.get(i) instanceof Literal literal && !literal.raw) {
+                        arguments.set(i, new Literal(literal.slot, false, field, String.class, literal.valueType));
+                    }
+                }
+                return;
+            }
+
+            var function = op.getExprFunction();
+            var equality = function == JPASearchFunctions.EQ || function == JPASearchFunctions.IN;
+            var comparison = equality
+                    || function == JPASearchFunctions.GT
+                    || function == JPASearchFunctions.GTE
+                    || function == JPASearchFunctions.LT
+                    || function == JPASearchFunctions.LTE
+                    || function == JPASearchFunctions.BETWEEN;
+            if (!comparison || arguments.isEmpty()
+                    || !(arguments.get(0) instanceof FieldRef field) || field.descriptor == null) {
+                return;
+            }
+
+            // a field searched as another type, e.g. a string column with targetType INTEGER,
+            // keeps the order of the search type, so only equalities are converted to the column type
+            var descriptor = field.descriptor;
+            var searchType = descriptor.getSearchType();
+            if (!searchType.getDefaultClasses().contains(descriptor.getFieldType())
+                    && searchType != SearchType.STRING && !equality) {
+                return;
+            }
+
+            for (var i = 1; i < arguments.size(); i++) {
+                if (arguments.get(i) instanceof Literal literal && !literal.raw) {
+                    arguments.set(i, new Literal(literal.slot, false, field, descriptor.getFieldType(), literal.valueType));
+                }
+            }
+        }
+
+        private Node compileValue(Operator op, JsonNode node) {
+            if (node.isArray()) {
+                return compileExpression(node);
+            }
+
+            // validates the value, the actual value is bound from the filter shape
+            scalarValue(node);
+            return new Literal(nextSlot++, node.isTextual() && !op.isEvaluateStrings(), null, null, null);
+        }
+    }
+
+    public Predicate toPredicate(Root<?> root, CriteriaQuery<?> query, CriteriaBuilder cb) {
+        return toPredicate(root, query, cb, null);
+    }
+
+    /**
+     * Translates the filter, binding its values as parameters into {@code bindings}
+     * instead of inlining them as literals. The bindings must be applied to the
+     * query created from {@code query} before executing it.
+     */
+    public Predicate toPredicate(
+            Root<?> root,
+            CriteriaQuery<?> query,
+            CriteriaBuilder cb,
+            ParameterBindings bindings
+    ) {
+        return toPredicate(new QueryContext(cb, root, query, bindings));
+    }
+
+    Predicate toPredicate(QueryContext context) {
+        if (this.root == null) {
+            return null;
+        }
+
+        var expr = translate(this.root, context);
+        if (expr instanceof Predicate) {
+            return (Predicate) expr;
+        } else {
+            throw new JPASearchException("Not resulting a predicate" + expr);
+        }
+    }
+
+    /**
+     * Returns whether the filter provably matches no rows with its current
+     * values, e.g. {@code ["and", ["eq", f, 1], ["eq", f, 2]]}, so that the
+     * query can be skipped.
+     */
+    public boolean matchesNothing() {
+        return root != null && FilterNormalizer.isEmpty(root, values);
+    }
+
+    /**
+     * Returns whether the filter joins a collection into the query (outside of
+     * "any"), so that the query may return a row more than once.
+     */
+    public boolean joinsCollections() {
+        return joinsCollections(root);
+    }
+
+    private static boolean trimsInput(JPASearchCore.Descriptor descriptor) {
+        return descriptor != null
+                && descriptor.getSearchable() != null
+                && descriptor.getSearchable().trim()
+                && descriptor.getSearchable().trimMode() == TrimMode.INPUT
+                && descriptor.getSearchType() == SearchType.STRING
+                && descriptor.getFieldType() == String.class;
+    }
+
+    private static boolean joinsCollections(Node node) {
+        if (node instanceof FieldRef fieldRef) {
+            return fieldRef.descriptor != null && crossesCollection(fieldRef.descriptor);
+        } else if (node instanceof Call call) {
+            for (var argument : call.arguments) {
+                if (joinsCollections(argument)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the path of the field goes through a collection.
+     */
+    static boolean crossesCollection(JPASearchCore.Descriptor descriptor) {
+        var path = descriptor.getFieldPath();
+        for (var i = 0; i < path.size() - 1; i++) {
+            if (Collection.class.isAssignableFrom(path.get(i).getType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the filter without its top-level conditions that refer only to
+     * the field {@code key}, e.g. for the counts of a facet of the field that
+     * ignore the values selected in the facet itself.
+     */
+    public CompiledFilter<T> withoutConditionsOn(String key) {
+        if (root == null) {
+            return this;
+        }
+
+        Node remaining;
+        if (root instanceof Call call && call.operator.getExprFunction() == JPASearchFunctions.AND) {
+            var arguments = new ArrayList<Node>(call.arguments.size());
+            for (var argument : call.arguments) {
+                if (!refersOnlyTo(argument, key)) {
+                    arguments.add(argument);
+                }
+            }
+            if (arguments.size() == call.arguments.size()) {
+                return this;
+            }
+            remaining = arguments.isEmpty()
+                    ? null
+                    : arguments.size() == 1 ? arguments.get(0) : new Call(call.operator, Collections.unmodifiableList(arguments));
+        } else if (refersOnlyTo(root, key)) {
+            remaining = null;
+        } else {
+            return this;
+        }
+        // the values keep their slots, so the same array is shared
+        return new CompiledFilter<>(entityClass, metadata, fingerprint + "-" + key, collectionJoins, remaining, values);
+    }
+
+    private static boolean refersOnlyTo(Node node, String key) {
+        var keys = new HashSet<String>();
+        return collectFieldKeys(node, keys) && keys.equals(Set.of(key));
+    }
+
+    /**
+     * Collects the keys of the fields referred to, returns {@code false} for an "any" subtree.
+     */
+    private static boolean collectFieldKeys(Node node, Set<String> keys) {
+        if (node instanceof FieldRef field) {
+            keys.add(field.key);
+        } else if (node instanceof Any) {
+            return false;
+        } else if (node instanceof Call call) {
+            for (var argument : call.arguments) {
+                if (!collectFieldKeys(argument, keys)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a predicate evaluating the filter on entity objects in memory,
+     * with the same semantics as the query, see {@link InMemoryFilter}.
+     */
+    public java.util.function.Predicate<T> toMatcher() {
+        return InMemoryFilter.toPredicate(this);
+    }
+
+    /**
+     * Returns the in-memory condition of {@code node}, a subtree of this filter.
+     */
+    InMemoryFilter.Condition condition(Node node) {
+        return conditions.computeIfAbsent(node, n -> InMemoryFilter.condition(this, n));
+    }
+
+    public <R> Specification<R> toSpecification() {
+        return this::toPredicate;
+    }
+
+    private Object translate(Node node, QueryContext context) {
+        var cb = context.getCb();
+
+        if (node instanceof FieldRef fieldRef) {
+            return translateField(fieldRef, context);
+        } else if (node instanceof Any any) {
+            return translateAny(any, context);
+        } else if (node instanceof Literal literal) {
+            var value = values[literal.slot];
+            if (value == null) {
+                return cb.nullLiteral(entityClass);
+            }
+            return literal.raw ? value : context.value(value, literal.type);
+        }
+
+        var call = (Call) node;
+        var op = call.operator;
+        var nodes = call.arguments;
+        if (FilterNormalizer.isJunction(call)) {
+            if (FilterNormalizer.isEmpty(call, values)) {
+                return cb.disjunction();
+            }
+            nodes = FilterNormalizer.distinct(call, values);
+            if (nodes.size() == 1) {
+                return translate(nodes.get(0), context);
+            }
+        }
+
+        if (op.getExprFunction() == JPASearchFunctions.IN && isBoundList(nodes, context)) {
+            return translateIn(nodes, context);
+        }
+
+        var arguments = new Object[nodes.size()];
+        for (var i = 0; i < arguments.length; i++) {
+            arguments[i] = translate(nodes.get(i), context);
+        }
+
+        if (op.isEvaluateStrings()) {
+            var expressions = new Expression[arguments.length];
+            System.arraycopy(arguments, 0, expressions, 0, arguments.length);
+            return op.getExprFunction().apply(cb, expressions);
+        } else {
+            return op.getObjFunction().apply(
+                    context.getRoot(),
+                    context.getQuery(),
+                    cb,
+                    arguments,
+                    metadata.getSearchableFields()
+            );
+        }
+    }
+
+    private boolean isBoundList(List<Node> nodes, QueryContext context) {
+        if (context.getBindings() == null || nodes.size() < 3) {
+            return false;
+        }
+        for (var node : nodes.subList(1, nodes.size())) {
+            if (!(node instanceof Literal literal) || literal.raw || values[literal.slot] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Translates an {@code in} of bound values, padded and split into chunks
+     * as configured in {@link InLists}.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Predicate translateIn(List<Node> nodes, QueryContext context) {
+        var cb = context.getCb();
+        var field = (Expression<?>) translate(nodes.get(0), context);
+        var literals = nodes.subList(1, nodes.size());
+        var maxSize = InLists.getMaxSize();
+
+        var chunks = new ArrayList<Predicate>();
+        for (var start = 0; start < literals.size(); start += maxSize) {
+            var chunk = literals.subList(start, Math.min(start + maxSize, literals.size()));
+            CriteriaBuilder.In<Object> in = cb.in(field);
+            for (var literal : chunk) {
+                in.value((Expression) translate(literal, context));
+            }
+            var last = chunk.get(chunk.size() - 1);
+            for (var i = chunk.size(); i < InLists.paddedSize(chunk.size(), maxSize); i++) {
+                in.value((Expression) translate(last, context));
+            }
+            chunks.add(in);
+        }
+        return chunks.size() == 1 ? chunks.get(0) : cb.or(chunks.toArray(new Predicate[0]));
+    }
+
+    private Expression<?> translateField(FieldRef fieldRef, QueryContext context) {
+        var descriptor = fieldRef.descriptor;
+        if (descriptor == null) {
+            return null;
+        }
+
+        var cb = context.getCb();
+        var path = getPath(cb, context.getFrom(), descriptor, context.getJoins(), collectionJoins);
+
+        if (descriptor.getSearchable().trim()
+                && descriptor.getSearchable().trimMode() == TrimMode.COLUMN
+                && descriptor.getSearchType() == SearchType.STRING
+                && !fieldRef.lowerCase) {
+            return cb.trim(path.as(String.class));
+        } else if (descriptor.getFieldType().isEnum()) {
+            return path.as(descriptor.getFieldType());
+        }
+
+        return path;
+    }
+
+    /**
+     * Translates "any" into an {@code EXISTS} subquery correlated on the
+     * current root, so the collection is not joined into the outer query.
+     */
+    private Predicate translateAny(Any any, QueryContext context) {
+        var cb = context.getCb();
+        var subquery = context.getScope().subquery(Integer.class);
+        var outer = context.getFrom();
+
+        From<?, ?> element = outer instanceof Root<?> root
+                ? subquery.correlate(root)
+                : subquery.correlate((Join<?, ?>) outer);
+        for (var field : any.path) {
+            element = element.join(field.getName());
+        }
+
+        subquery.select(cb.literal(1));
+        if (any.filter != null) {
+            var predicate = translate(any.filter, context.withScope(element, subquery));
+            if (!(predicate instanceof Predicate)) {
+                throw new JPASearchException("Not resulting a predicate" + predicate);
+            }
+            subquery.where((Predicate) predicate);
+        }
+
+        return cb.exists(subquery);
+    }
+
+    public interface Node {
+    }
+
+    /**
+     * Operator applied to its (already compiled) arguments.
+     */
+    @Value
+    public static class Call implements Node {
+        Operator operator;
+        List<Node> arguments;
+    }
+
+    /**
+     * Reference to a searchable field, {@code descriptor} is {@code null} if the
+     * field was not found and the filter was compiled without throwing.
+     * {@code lowerCase} references replace {@code ["lower", field]} with the
+     * {@link com.gisgro.annotations.Searchable#lowerCaseField()} of the field.
+     */
+    @Value
+    public static class FieldRef implements Node {
+        String key;
+        JPASearchCore.Descriptor descriptor;
+        boolean lowerCase;
+    }
+
+    /**
+     * Existential condition on the elements of a nested collection, {@code path}
+     * leads from the enclosing scope to the collection and {@code filter}, if
+     * any, is resolved from its elements.
+     */
+    @Value
+    public static class Any implements Node {
+        String key;
+        List<Field> path;
+        Node filter;
+    }
+
+    /**
+     * Placeholder for a scalar value of the payload, bound from the value slot
+     * of the filter. Raw values are passed to the operator function as is,
+     * others are turned into criteria literals or parameters. Values compared
+     * with {@code field} are converted to {@code type}, the type of the field.
+     * Values of temporal value operators are first parsed as {@code valueType}.
+     */
+    @Value
+    public static class Literal implements Node {
+        int slot;
+        boolean raw;
+        FieldRef field;
+        Class<?> type;
+        Class<?> valueType;
+    }
+
+    @Value
+    public static class Shape {
+        String fingerprint;
+        Object[] values;
+    }
+}
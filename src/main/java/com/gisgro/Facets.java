@@ -0,0 +1,69 @@
+package com.gisgro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.model.EntityMetadata;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * Fields of {@code options.facets}, whose values are counted over the rows
+ * matching the filter, see {@link JPASearchExecutor#facets(CompiledFilter, Facets)}.
+ * <p>
+ * The fields are validated like the selected fields: only searchable fields
+ * can be faceted.
+ */
+@Getter
+@AllArgsConstructor
+public class Facets {
+    /**
+     * Faceted fields by their keys, in the order of the payload.
+     */
+    private final Map<String, JPASearchCore.Descriptor> fields;
+
+    /**
+     * Returns the facets of the payload, or {@code null} if it does not request facets.
+     */
+    public static Facets load(
+            JsonNode filterPayload,
+            Class<?> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        var options = filterPayload.get("options");
+        var facetsNode = options == null ? null : options.get("facets");
+        if (facetsNode == null || facetsNode.isNull()) {
+            return null;
+        }
+
+        var keys = new ArrayList<String>();
+        if (facetsNode.isTextual()) {
+            keys.add(facetsNode.asText());
+        } else if (facetsNode.isArray()) {
+            for (var itm : facetsNode) {
+                keys.add(itm.asText());
+            }
+        } else {
+            throw new JPASearchException("Invalid facets: " + facetsNode);
+        }
+
+        var metadata = EntityMetadata.of(entityClass, searchableSubclasses);
+        var fields = new LinkedHashMap<String, JPASearchCore.Descriptor>();
+        for (var key : keys) {
+            var descriptor = JPASearchCore.loadDescriptor(
+                    key,
+                    throwsIfNotExistsOrNotSearchable,
+                    false,
+                    false,
+                    metadata
+            );
+            if (descriptor != null) {
+                fields.put(key, descriptor);
+            }
+        }
+
+        return new Facets(Collections.unmodifiableMap(fields));
+    }
+}
@@ -0,0 +1,137 @@
+package com.gisgro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.gisgro.exceptions.InvalidFieldException;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.model.EntityMetadata;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import javax.persistence.EntityGraph;
+import javax.persistence.EntityManager;
+import javax.persistence.Subgraph;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.FetchParent;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Root;
+import java.util.*;
+
+/**
+ * Associations loaded eagerly with the results, from {@code options.fetch}.
+ * <p>
+ * The paths must be nested searchable associations. They are applied to the
+ * data query only, as an entity graph by {@link JPASearchExecutor} or as fetch
+ * joins by {@link JPASearchCore#specification}, so that the associations of a
+ * page are loaded with one query instead of one per row.
+ */
+@Getter
+@AllArgsConstructor
+public class FetchPlan {
+    public static final String LOAD_GRAPH_HINT = "javax.persistence.loadgraph";
+
+    private final List<String> paths;
+    /**
+     * The paths going through a collection, which cannot be fetched with the
+     * rows of a paged query.
+     */
+    private final Set<String> collectionPaths;
+
+    /**
+     * Returns the fetch plan of the payload, or {@code null} if it does not fetch anything.
+     */
+    public static FetchPlan load(
+            JsonNode filterPayload,
+            Class<?> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        var options = filterPayload.get("options");
+        var fetchNode = options == null ? null : options.get("fetch");
+        if (fetchNode == null || fetchNode.isNull()) {
+            return null;
+        }
+
+        var keys = new ArrayList<String>();
+        if (fetchNode.isTextual()) {
+            keys.add(fetchNode.asText());
+        } else if (fetchNode.isArray()) {
+            for (var itm : fetchNode) {
+                keys.add(itm.asText());
+            }
+        } else {
+            throw new JPASearchException("Invalid fetch: " + fetchNode);
+        }
+
+        var metadata = EntityMetadata.of(entityClass, searchableSubclasses);
+        var paths = new ArrayList<String>();
+        for (var key : keys) {
+            if (metadata.getAssociations().containsKey(key)) {
+                paths.add(key);
+            } else if (throwsIfNotExistsOrNotSearchable) {
+                throw new InvalidFieldException("Field [" + key + "] is not a searchable association", key);
+            }
+        }
+
+        if (paths.isEmpty()) {
+            return null;
+        }
+        var collectionPaths = new HashSet<String>();
+        for (var path : paths) {
+            for (var collection : metadata.getCollections().keySet()) {
+                if (path.equals(collection) || path.startsWith(collection + ".")) {
+                    collectionPaths.add(path);
+                }
+            }
+        }
+        return new FetchPlan(Collections.unmodifiableList(paths), Collections.unmodifiableSet(collectionPaths));
+    }
+
+    public boolean isFetchingCollections() {
+        return !collectionPaths.isEmpty();
+    }
+
+    public <T> EntityGraph<T> toEntityGraph(EntityManager entityManager, Class<T> entityClass) {
+        var graph = entityManager.createEntityGraph(entityClass);
+        var subgraphs = new HashMap<String, Subgraph<?>>();
+        for (var path : paths) {
+            var prefix = new StringBuilder();
+            Subgraph<?> subgraph = null;
+            for (var name : path.split("\\.")) {
+                var parent = subgraph;
+                prefix.append(prefix.length() == 0 ? "" : ".").append(name);
+                subgraph = subgraphs.computeIfAbsent(
+                        prefix.toString(),
+                        k -> parent == null ? graph.addSubgraph(name) : parent.addSubgraph(name)
+                );
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Adds the fetch joins to {@code root}, unless {@code query} is a count query.
+     * Paths through collections are left out: the specification may be paged,
+     * and the database cannot limit rows repeated per element, so Hibernate
+     * would page in memory. Use {@link JPASearchExecutor#search} to fetch them.
+     */
+    public void applyTo(Root<?> root, CriteriaQuery<?> query) {
+        var resultType = query.getResultType();
+        if (resultType == Long.class || resultType == long.class) {
+            return;
+        }
+
+        var fetches = new HashMap<String, FetchParent<?, ?>>();
+        for (var path : paths) {
+            if (collectionPaths.contains(path)) {
+                continue;
+            }
+            var prefix = new StringBuilder();
+            FetchParent<?, ?> fetch = root;
+            for (var name : path.split("\\.")) {
+                var parent = fetch;
+                prefix.append(prefix.length() == 0 ? "" : ".").append(name);
+                fetch = fetches.computeIfAbsent(prefix.toString(), k -> parent.fetch(name, JoinType.LEFT));
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.gisgro;
+
+import com.gisgro.CompiledFilter.Any;
+import com.gisgro.CompiledFilter.Call;
+import com.gisgro.CompiledFilter.FieldRef;
+import com.gisgro.CompiledFilter.Literal;
+import com.gisgro.CompiledFilter.Node;
+import com.gisgro.model.Operator;
+
+import java.util.*;
+
+/**
+ * Simplifies compiled filter trees before they are translated.
+ * <p>
+ * {@link #normalize(Node)} rewrites the structure of the tree, independent of
+ * the values, so its result is cached with the plan: nested {@code and}/{@code or}
+ * are flattened, single-child ones unwrapped, double {@code not} removed, and
+ * {@code eq} (and {@code in}) on the same field joined by {@code or} merged into
+ * one {@code in}. The value-dependent rewrites are done when the tree is bound
+ * to its values: repeated predicates are dropped ({@link #distinct}), and
+ * contradictions like {@code eq x 1 and eq x 2} make a subtree provably empty
+ * ({@link #isEmpty}).
+ * <p>
+ * Only the built-in operator functions are rewritten, not replacements
+ * registered with {@link Operator#addOperator}.
+ */
+class FilterNormalizer {
+    static Node normalize(Node node) {
+        if (node instanceof Any any) {
+            return any.getFilter() == null ? any : new Any(any.getKey(), any.getPath(), normalize(any.getFilter()));
+        }
+        if (!(node instanceof Call call)) {
+            return node;
+        }
+
+        var arguments = new ArrayList<Node>(call.getArguments().size());
+        for (var argument : call.getArguments()) {
+            arguments.add(normalize(argument));
+        }
+
+        if (is(call, JPASearchFunctions.NOT) && arguments.size() == 1
+                && arguments.get(0) instanceof Call inner && is(inner, JPASearchFunctions.NOT)
+                && inner.getArguments().size() == 1) {
+            return inner.getArguments().get(0);
+        }
+
+        if (isJunction(call)) {
+            var flattened = new ArrayList<Node>(arguments.size());
+            for (var argument : arguments) {
+                if (argument instanceof Call inner && inner.getOperator() == call.getOperator()) {
+                    flattened.addAll(inner.getArguments());
+                } else {
+                    flattened.add(argument);
+                }
+            }
+            if (is(call, JPASearchFunctions.OR)) {
+                flattened = mergeEqualities(flattened);
+            }
+            if (flattened.size() == 1) {
+                return flattened.get(0);
+            }
+            arguments = flattened;
+        }
+
+        return new Call(call.getOperator(), Collections.unmodifiableList(arguments));
+    }
+
+    /**
+     * Merges the {@code eq} and {@code in} of the same field with literal values into one {@code in}.
+     */
+    private static ArrayList<Node> mergeEqualities(List<Node> arguments) {
+        var groups = new LinkedHashMap<FieldRef, List<Node>>();
+        for (var argument : arguments) {
+            var field = comparedField(argument);
+            if (field != null) {
+                groups.computeIfAbsent(field, k -> new ArrayList<>()).add(argument);
+            }
+        }
+
+        var in = Operator.load("in");
+        if (in.getExprFunction() != JPASearchFunctions.IN) {
+            return new ArrayList<>(arguments);
+        }
+
+        var merged = new ArrayList<Node>(arguments.size());
+        for (var argument : arguments) {
+            var field = comparedField(argument);
+            var group = field == null ? null : groups.get(field);
+            if (group == null || group.size() < 2) {
+                merged.add(argument);
+            } else if (group.get(0) == argument) {
+                var inArguments = new ArrayList<Node>();
+                inArguments.add(field);
+                for (var member : group) {
+                    var values = ((Call) member).getArguments();
+                    inArguments.addAll(values.subList(1, values.size()));
+                }
+                merged.add(new Call(in, Collections.unmodifiableList(inArguments)));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns the field of an {@code eq} or {@code in} of a field and literal values, or {@code null}.
+     */
+    private static FieldRef comparedField(Node node) {
+        if (!(node instanceof Call call)
+                || !(is(call, JPASearchFunctions.EQ) || is(call, JPASearchFunctions.IN))
+                || call.getArguments().size() < 2
+                || !(call.getArguments().get(0) instanceof FieldRef field)) {
+            return null;
+        }
+        for (var i = 1; i < call.getArguments().size(); i++) {
+            if (!(call.getArguments().get(i) instanceof Literal literal) || literal.isRaw()) {
+                return null;
+            }
+        }
+        return field;
+    }
+
+    /**
+     * Returns the arguments of a junction without the repeated ones and, for
+     * {@code or}, without the provably empty ones.
+     */
+    static List<Node> distinct(Call junction, Object[] values) {
+        var or = is(junction, JPASearchFunctions.OR);
+        var signatures = new HashSet<String>();
+        var arguments = new ArrayList<Node>(junction.getArguments().size());
+        for (var argument : junction.getArguments()) {
+            if (signatures.add(signature(argument, values)) && !(or && isEmpty(argument, values))) {
+                arguments.add(argument);
+            }
+        }
+        return arguments;
+    }
+
+    /**
+     * Returns whether the node provably matches no rows with {@code values}.
+     * Negated subtrees are not looked into, so this only finds contradictions
+     * in a positive context.
+     */
+    static boolean isEmpty(Node node, Object[] values) {
+        if (node instanceof Any any) {
+            return any.getFilter() != null && isEmpty(any.getFilter(), values);
+        }
+        if (!(node instanceof Call call)) {
+            return false;
+        }
+
+        if (is(call, JPASearchFunctions.OR)) {
+            for (var argument : call.getArguments()) {
+                if (!isEmpty(argument, values)) {
+                    return false;
+                }
+            }
+            return !call.getArguments().isEmpty();
+        } else if (!is(call, JPASearchFunctions.AND)) {
+            return false;
+        }
+
+        var equalities = new HashMap<FieldRef, Object>();
+        for (var argument : call.getArguments()) {
+            if (isEmpty(argument, values)) {
+                return true;
+            }
+
+            var field = comparedField(argument);
+            if (field == null || !is((Call) argument, JPASearchFunctions.EQ)) {
+                continue;
+            }
+            var value = values[((Literal) ((Call) argument).getArguments().get(1)).getSlot()];
+            // only values compared exactly: strings may be trimmed or compared by a case-insensitive collation
+            if (!(value instanceof Number || value instanceof Boolean)) {
+                continue;
+            }
+            var previous = equalities.putIfAbsent(field, value);
+            if (previous != null && previous.getClass() == value.getClass() && !equalValues(previous, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares comparable values by {@code compareTo}, as the database does:
+     * e.g. the {@link java.math.BigDecimal BigDecimals} {@code 1.0} and {@code 1.00} are equal.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static boolean equalValues(Object a, Object b) {
+        if (a instanceof Comparable comparable) {
+            return comparable.compareTo(b) == 0;
+        }
+        return a.equals(b);
+    }
+
+    private static String signature(Node node, Object[] values) {
+        if (node instanceof FieldRef field) {
+            // the same key is a different expression when lower-cased or trimmed
+            return "[field," + field.getKey() + "," + field.isLowerCase() + "," + trimOf(field) + "]";
+        } else if (node instanceof Literal literal) {
+            var value = values[literal.getSlot()];
+            if (value == null) {
+                return "null";
+            }
+            var text = value.toString();
+            return value.getClass().getSimpleName() + ":" + text.length() + ":" + text;
+        } else if (node instanceof Any any) {
+            return "[any," + any.getKey() + (any.getFilter() == null ? "" : "," + signature(any.getFilter(), values)) + "]";
+        }
+
+        var call = (Call) node;
+        var signature = new StringBuilder("[").append(call.getOperator().getName());
+        for (var argument : call.getArguments()) {
+            signature.append(',').append(signature(argument, values));
+        }
+        return signature.append(']').toString();
+    }
+
+    private static String trimOf(FieldRef field) {
+        var descriptor = field.getDescriptor();
+        if (descriptor == null || descriptor.getSearchable() == null || !descriptor.getSearchable().trim()) {
+            return "none";
+        }
+        return descriptor.getSearchable().trimMode().name();
+    }
+
+    static boolean isJunction(Call call) {
+        return is(call, JPASearchFunctions.AND) || is(call, JPASearchFunctions.OR);
+    }
+
+    private static boolean is(Call call, Object function) {
+        return call.getOperator().getExprFunction() == function;
+    }
+}
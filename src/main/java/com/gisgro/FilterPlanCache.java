@@ -0,0 +1,91 @@
+package com.gisgro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.gisgro.model.EntityMetadata;
+import com.gisgro.model.Operator;
+import com.gisgro.utils.LruCache;
+import lombok.Value;
+
+import java.util.Set;
+
+/**
+ * Cache of compiled filter plans keyed by the shape of the filter.
+ * <p>
+ * Filters that differ only by their values share the same expression tree:
+ * on a hit only the values of the payload are extracted and bound into the
+ * cached plan, and operators and fields are not resolved again.
+ */
+public class FilterPlanCache {
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private static volatile FilterPlanCache defaultCache = new FilterPlanCache(DEFAULT_MAX_SIZE);
+
+    private final LruCache<Key, CompiledFilter<?>> plans;
+
+    public FilterPlanCache(int maxSize) {
+        this.plans = new LruCache<>(maxSize);
+    }
+
+    public static FilterPlanCache getDefault() {
+        return defaultCache;
+    }
+
+    public static void setDefault(FilterPlanCache cache) {
+        defaultCache = cache;
+    }
+
+    public <T> CompiledFilter<T> compile(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        var metadata = EntityMetadata.of(entityClass, searchableSubclasses);
+        var shape = CompiledFilter.shapeOf(filterPayload);
+        var key = new Key(
+                entityClass,
+                metadata.getEntityClasses(),
+                throwsIfNotExistsOrNotSearchable,
+                JoinRegistry.CollectionJoins.load(filterPayload),
+                shape.getFingerprint(),
+                Operator.getVersion()
+        );
+
+        @SuppressWarnings("unchecked")
+        var plan = (CompiledFilter<T>) plans.get(key);
+        if (plan == null) {
+            plan = CompiledFilter.compile(
+                    filterPayload,
+                    entityClass,
+                    metadata,
+                    throwsIfNotExistsOrNotSearchable,
+                    shape
+            );
+            plans.put(key, plan);
+            return plan;
+        }
+
+        return plan.withValues(shape.getValues());
+    }
+
+    public LruCache.Statistics getStatistics() {
+        return plans.getStatistics();
+    }
+
+    public void clear() {
+        plans.clear();
+    }
+
+    @Value
+    private static class Key {
+        Class<?> entityClass;
+        Set<Class<?>> entityClasses;
+        boolean throwsIfNotExistsOrNotSearchable;
+        JoinRegistry.CollectionJoins collectionJoins;
+        String fingerprint;
+        /**
+         * Version of the operators the plan was compiled against.
+         */
+        int operatorVersion;
+    }
+}
@@ -0,0 +1,45 @@
+package com.gisgro;
+
+/**
+ * Settings of how the values of {@code in} are bound as parameters.
+ * <p>
+ * Every list length produces a different SQL text, so lists are padded
+ * (repeating their last value) to the next power of two: all lists of 9 to 16
+ * values share one statement. Lists longer than {@link #getMaxSize()} are split
+ * into chunks joined by {@code or}, as some databases limit the number of
+ * {@code in} values (e.g. 1000 in Oracle). Only applied when the values are
+ * bound as parameters.
+ */
+public class InLists {
+    private static volatile boolean padding = true;
+    private static volatile int maxSize = 1000;
+
+    public static boolean isPadding() {
+        return padding;
+    }
+
+    public static void setPadding(boolean padding) {
+        InLists.padding = padding;
+    }
+
+    public static int getMaxSize() {
+        return maxSize;
+    }
+
+    public static void setMaxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        InLists.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the number of parameters a list of {@code size} values is padded to.
+     */
+    static int paddedSize(int size, int maxSize) {
+        if (!padding || size < 2) {
+            return size;
+        }
+        return Math.max(size, Math.min(Integer.highestOneBit(size - 1) << 1, maxSize));
+    }
+}
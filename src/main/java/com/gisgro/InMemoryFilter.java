@@ -0,0 +1,471 @@
+package com.gisgro;
+
+import com.gisgro.CompiledFilter.Any;
+import com.gisgro.CompiledFilter.Call;
+import com.gisgro.CompiledFilter.FieldRef;
+import com.gisgro.CompiledFilter.Literal;
+import com.gisgro.CompiledFilter.Node;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.model.SearchType;
+import com.gisgro.model.TrimMode;
+import com.gisgro.utils.ReflectionUtils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.time.Period;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Evaluates a compiled filter on entity objects instead of the database, e.g.
+ * to filter cached entities with the same payload as a search.
+ * <p>
+ * The tree is compiled once into nested conditions reading the fields through
+ * method handles bound when the predicate is created, so evaluating it does not
+ * use reflection. The semantics follow the SQL translation: comparisons with
+ * {@code null} are unknown (three-valued logic, with {@code null} standing for
+ * unknown), {@code startsWith}/{@code endsWith}/{@code contains} are
+ * case-sensitive {@code LIKE} patterns, and {@code any} matches if some
+ * element of the collection matches.
+ * <p>
+ * Only the built-in operator functions can be evaluated, not replacements
+ * registered with {@link com.gisgro.model.Operator#addOperator}. Fields across
+ * a collection can only be referenced inside {@code any}, as the joined query
+ * matches the combinations of their elements.
+ */
+class InMemoryFilter {
+    /**
+     * Three-valued condition: {@code TRUE}, {@code FALSE} or {@code null} for unknown.
+     */
+    interface Condition {
+        Boolean test(Object entity);
+    }
+
+    interface Value {
+        Object get(Object entity);
+    }
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final Map<Field, MethodHandle> getters = new ConcurrentHashMap<>();
+
+    private final CompiledFilter<?> filter;
+
+    private InMemoryFilter(CompiledFilter<?> filter) {
+        this.filter = filter;
+    }
+
+    static <T> Predicate<T> toPredicate(CompiledFilter<T> filter) {
+        if (filter.getRoot() == null) {
+            return entity -> true;
+        }
+        var condition = filter.condition(filter.getRoot());
+        return entity -> condition.test(entity) == Boolean.TRUE;
+    }
+
+    /**
+     * Builds the three-valued condition of {@code node}, a subtree of {@code filter},
+     * see {@link CompiledFilter#condition(Node)} for the cached one.
+     */
+    static Condition condition(CompiledFilter<?> filter, Node node) {
+        return new InMemoryFilter(filter).condition(node);
+    }
+
+    private Condition condition(Node node) {
+        if (node instanceof Any any) {
+            return any(any);
+        }
+        if (!(node instanceof Call call)) {
+            throw new JPASearchException("Not resulting a predicate" + node);
+        }
+
+        var function = call.getOperator().getExprFunction();
+        var arguments = call.getArguments();
+        if (function == JPASearchFunctions.AND || function == JPASearchFunctions.OR) {
+            var conditions = new Condition[arguments.size()];
+            for (var i = 0; i < conditions.length; i++) {
+                conditions[i] = condition(arguments.get(i));
+            }
+            return function == JPASearchFunctions.AND ? and(conditions) : or(conditions);
+        } else if (function == JPASearchFunctions.NOT) {
+            var condition = condition(arguments.get(0));
+            return entity -> {
+                var result = condition.test(entity);
+                return result == null ? null : !result;
+            };
+        } else if (function == JPASearchFunctions.NULL) {
+            var value = value(arguments.get(0));
+            return entity -> value.get(entity) == null;
+        } else if (function == JPASearchFunctions.EMPTY) {
+            var value = value(arguments.get(0));
+            return entity -> value.get(entity) instanceof Collection<?> collection ? collection.isEmpty() : Boolean.TRUE;
+        } else if (function == JPASearchFunctions.IN) {
+            return in(values(arguments));
+        } else if (function == JPASearchFunctions.BETWEEN) {
+            var values = values(arguments);
+            return entity -> {
+                var value = values[0].get(entity);
+                var lower = values[1].get(entity);
+                var upper = values[2].get(entity);
+                if (value == null || lower == null || upper == null) {
+                    return null;
+                }
+                var fromLower = compareOrUnknown(value, lower);
+                var fromUpper = compareOrUnknown(value, upper);
+                if (fromLower == null || fromUpper == null) {
+                    return null;
+                }
+                return fromLower >= 0 && fromUpper <= 0;
+            };
+        } else if (function == JPASearchFunctions.STARTSWITH
+                || function == JPASearchFunctions.ENDSWITH
+                || function == JPASearchFunctions.CONTAINS) {
+            var values = values(arguments);
+            var prefix = function != JPASearchFunctions.STARTSWITH;
+            var suffix = function != JPASearchFunctions.ENDSWITH;
+            return entity -> {
+                var value = values[0].get(entity);
+                var pattern = values[1].get(entity);
+                if (value == null || pattern == null) {
+                    return null;
+                }
+                return like(value.toString(), pattern.toString(), prefix, suffix);
+            };
+        }
+
+        var comparison = comparison(function);
+        if (comparison < 0) {
+            throw unsupported(call);
+        }
+        var values = values(arguments);
+        return entity -> {
+            var left = values[0].get(entity);
+            var right = values[1].get(entity);
+            if (left == null || right == null) {
+                return null;
+            } else if (comparison == 0) {
+                return equal(left, right);
+            }
+            var order = compareOrUnknown(left, right);
+            if (order == null) {
+                return null;
+            }
+            return switch (comparison) {
+                case 1 -> order > 0;
+                case 2 -> order >= 0;
+                case 3 -> order < 0;
+                default -> order <= 0;
+            };
+        };
+    }
+
+    private static int comparison(Object function) {
+        if (function == JPASearchFunctions.EQ) {
+            return 0;
+        } else if (function == JPASearchFunctions.GT) {
+            return 1;
+        } else if (function == JPASearchFunctions.GTE) {
+            return 2;
+        } else if (function == JPASearchFunctions.LT) {
+            return 3;
+        } else if (function == JPASearchFunctions.LTE) {
+            return 4;
+        }
+        return -1;
+    }
+
+    private static Condition and(Condition[] conditions) {
+        return entity -> {
+            Boolean result = Boolean.TRUE;
+            for (var condition : conditions) {
+                var value = condition.test(entity);
+                if (value == Boolean.FALSE) {
+                    return Boolean.FALSE;
+                } else if (value == null) {
+                    result = null;
+                }
+            }
+            return result;
+        };
+    }
+
+    private static Condition or(Condition[] conditions) {
+        return entity -> {
+            Boolean result = Boolean.FALSE;
+            for (var condition : conditions) {
+                var value = condition.test(entity);
+                if (value == Boolean.TRUE) {
+                    return Boolean.TRUE;
+                } else if (value == null) {
+                    result = null;
+                }
+            }
+            return result;
+        };
+    }
+
+    private static Condition in(Value[] values) {
+        return entity -> {
+            var value = values[0].get(entity);
+            if (value == null) {
+                return null;
+            }
+            Boolean result = Boolean.FALSE;
+            for (var i = 1; i < values.length; i++) {
+                var candidate = values[i].get(entity);
+                var equal = candidate == null ? null : equal(value, candidate);
+                if (equal == null) {
+                    result = null;
+                } else if (equal) {
+                    return Boolean.TRUE;
+                }
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Matches if some element of the collection matches the filter, like the
+     * {@code EXISTS} subquery of the SQL translation, so it is never unknown.
+     */
+    private Condition any(Any any) {
+        var getters = new MethodHandle[any.getPath().size()];
+        for (var i = 0; i < getters.length; i++) {
+            getters[i] = getter(any.getPath().get(i));
+        }
+        var condition = any.getFilter() == null ? null : condition(any.getFilter());
+        return entity -> anyMatch(entity, getters, 0, condition);
+    }
+
+    private static boolean anyMatch(Object object, MethodHandle[] getters, int index, Condition condition) {
+        if (index == getters.length) {
+            return condition == null || condition.test(object) == Boolean.TRUE;
+        }
+
+        var value = get(getters[index], ReflectionUtils.unproxy(object));
+        if (value instanceof Collection<?> collection) {
+            for (var element : collection) {
+                if (element != null && anyMatch(element, getters, index + 1, condition)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return value != null && anyMatch(value, getters, index + 1, condition);
+    }
+
+    private Value[] values(List<Node> arguments) {
+        var values = new Value[arguments.size()];
+        for (var i = 0; i < values.length; i++) {
+            values[i] = value(arguments.get(i));
+        }
+        return values;
+    }
+
+    private Value value(Node node) {
+        if (node instanceof FieldRef fieldRef) {
+            return field(fieldRef);
+        } else if (node instanceof Literal literal) {
+            var constant = filter.getValues()[literal.getSlot()];
+            return entity -> constant;
+        } else if (node instanceof Any) {
+            throw new JPASearchException("Not resulting a value: " + node);
+        }
+
+        var call = (Call) node;
+        var operator = call.getOperator();
+        var arguments = call.getArguments();
+        if (operator.getExprFunction() == JPASearchFunctions.LOWER) {
+            var value = value(arguments.get(0));
+            return entity -> {
+                var text = value.get(entity);
+                return text == null ? null : text.toString().toLowerCase(Locale.ROOT);
+            };
+        } else if (operator.getObjFunction() == JPASearchFunctions.BIG_DECIMAL) {
+            var constant = new BigDecimal((String) rawValue(arguments.get(0)));
+            return entity -> constant;
+        } else if (operator.getObjFunction() == JPASearchFunctions.PERIOD) {
+            var constant = Period.parse((String) rawValue(arguments.get(0)));
+            return entity -> constant;
+        } else if (operator.getObjFunction() == JPASearchFunctions.ENUM) {
+            var constant = enumValue((String) rawValue(arguments.get(0)), (String) rawValue(arguments.get(1)));
+            return entity -> constant;
+        }
+
+        var condition = condition(node);
+        return condition::test;
+    }
+
+    private Object rawValue(Node node) {
+        if (!(node instanceof Literal literal)) {
+            throw new JPASearchException("Invalid value: " + node);
+        }
+        return filter.getValues()[literal.getSlot()];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Object enumValue(String className, String valueName) {
+        for (var path : filter.getMetadata().getSearchableFields().values()) {
+            var type = path.get(path.size() - 1).getType();
+            if (type.isEnum() && type.getName().endsWith("." + className)) {
+                return Enum.valueOf((Class<Enum>) type, valueName);
+            }
+        }
+        throw new JPASearchException(String.format("Cannot find enum %s", className));
+    }
+
+    /**
+     * Returns a reader of the value of the field, as compared by the query.
+     */
+    static Value field(FieldRef fieldRef) {
+        var descriptor = fieldRef.getDescriptor();
+        if (descriptor == null) {
+            return entity -> null;
+        }
+
+        var path = descriptor.getFieldPath();
+        var getters = new MethodHandle[path.size()];
+        var declaringClasses = new Class<?>[path.size()];
+        for (var i = 0; i < getters.length; i++) {
+            var field = path.get(i);
+            if (i < getters.length - 1 && Collection.class.isAssignableFrom(field.getType())) {
+                throw new JPASearchException(
+                        "Field [" + fieldRef.getKey() + "] is in a collection, use any to filter it in memory"
+                );
+            }
+            getters[i] = getter(field);
+            declaringClasses[i] = field.getDeclaringClass();
+        }
+
+        var trim = !fieldRef.isLowerCase()
+                && descriptor.getSearchable() != null
+                && descriptor.getSearchable().trim()
+                && descriptor.getSearchable().trimMode() == TrimMode.COLUMN
+                && descriptor.getSearchType() == SearchType.STRING;
+        return entity -> {
+            Object value = entity;
+            for (var i = 0; i < getters.length && value != null; i++) {
+                // the fields of a lazy proxy are not set, read the entity behind it
+                value = ReflectionUtils.unproxy(value);
+                // fields of other subclasses are null, like the treated joins of the query
+                value = declaringClasses[i].isInstance(value) ? get(getters[i], value) : null;
+            }
+            return trim && value != null ? value.toString().trim() : value;
+        };
+    }
+
+    private static MethodHandle getter(Field field) {
+        return getters.computeIfAbsent(field, InMemoryFilter::unreflectGetter);
+    }
+
+    private static MethodHandle unreflectGetter(Field field) {
+        try {
+            field.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(field).asType(GETTER_TYPE);
+        } catch (IllegalAccessException | RuntimeException e) {
+            throw new JPASearchException("Cannot read field " + field.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static Object get(MethodHandle getter, Object object) {
+        try {
+            return (Object) getter.invokeExact(object);
+        } catch (Throwable e) {
+            throw new JPASearchException("Cannot read field: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns whether the values are equal, or {@code null} (unknown) if they
+     * cannot be compared.
+     */
+    static Boolean equal(Object left, Object right) {
+        if (left instanceof Comparable<?> && right instanceof Comparable<?>) {
+            var order = compareOrUnknown(left, right);
+            return order == null ? null : order == 0;
+        }
+        return left.equals(right);
+    }
+
+    /**
+     * Compares like {@link #compare}, or returns {@code null} (unknown) if the
+     * values cannot be compared, e.g. a number and a non-numeric string.
+     */
+    static Integer compareOrUnknown(Object left, Object right) {
+        try {
+            return compare(left, right);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compares like the database: numbers of different types by their value.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static int compare(Object left, Object right) {
+        if (left.getClass() != right.getClass()) {
+            if (left instanceof Number && right instanceof Number) {
+                return new BigDecimal(left.toString()).compareTo(new BigDecimal(right.toString()));
+            } else if (left instanceof Number || right instanceof Number) {
+                return new BigDecimal(left.toString().trim()).compareTo(new BigDecimal(right.toString().trim()));
+            } else if (left instanceof Enum<?> || right instanceof Enum<?>) {
+                return left.toString().compareTo(right.toString());
+            }
+        }
+        if (left instanceof Comparable comparable) {
+            return comparable.compareTo(right);
+        }
+        throw new JPASearchException("Cannot compare " + left.getClass().getSimpleName());
+    }
+
+    /**
+     * Matches {@code text} with the {@code LIKE} pattern {@code pattern}, with
+     * {@code %} prepended and/or appended as the SQL translation does.
+     */
+    private static boolean like(String text, String pattern, boolean prefix, boolean suffix) {
+        var length = pattern.length() + (prefix ? 1 : 0) + (suffix ? 1 : 0);
+        var t = 0;
+        var p = 0;
+        var starText = -1;
+        var starPattern = -1;
+        while (t < text.length()) {
+            var c = p < length ? patternChar(pattern, p, prefix, length, suffix) : 0;
+            if (p < length && c == '%') {
+                starPattern = p++;
+                starText = t;
+            } else if (p < length && (c == '_' || c == text.charAt(t))) {
+                p++;
+                t++;
+            } else if (starPattern >= 0) {
+                p = starPattern + 1;
+                t = ++starText;
+            } else {
+                return false;
+            }
+        }
+        while (p < length && patternChar(pattern, p, prefix, length, suffix) == '%') {
+            p++;
+        }
+        return p == length;
+    }
+
+    private static char patternChar(String pattern, int index, boolean prefix, int length, boolean suffix) {
+        if (prefix && index == 0 || suffix && index == length - 1) {
+            return '%';
+        }
+        return pattern.charAt(prefix ? index - 1 : index);
+    }
+
+    private static JPASearchException unsupported(Call call) {
+        return new JPASearchException(
+                "Operator [" + call.getOperator().getName() + "] is not supported in memory"
+        );
+    }
+}
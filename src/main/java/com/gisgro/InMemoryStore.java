@@ -0,0 +1,562 @@
+package com.gisgro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.gisgro.CompiledFilter.Call;
+import com.gisgro.CompiledFilter.FieldRef;
+import com.gisgro.CompiledFilter.Literal;
+import com.gisgro.CompiledFilter.Node;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.model.EntityMetadata;
+import com.gisgro.utils.ReflectionUtils;
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Sort;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of the entities of a class, searched with the same filter
+ * payloads as the database, for read-mostly reference data searched often.
+ * <p>
+ * The values of each searchable field are stored as a column by row number,
+ * with an index from each value to the {@link BitSet} of the rows having it,
+ * sorted for comparable values. Comparisons of an indexed field with values
+ * ({@code eq}, {@code in}, {@code gt}, {@code gte}, {@code lt}, {@code lte},
+ * {@code between}, {@code isNull}) are answered from the indexes and combined
+ * as bit sets; other subtrees are evaluated row by row with
+ * {@link CompiledFilter#toMatcher()} semantics.
+ * <p>
+ * The store keeps copies of the entities as they were put, and is kept up to
+ * date with {@link #put} and {@link #remove}. Stores that are
+ * {@link #register() registered} are updated by {@link InMemoryStoreListener}
+ * when the transactions saving or removing the entities commit.
+ */
+public class InMemoryStore<T> {
+    private static final Map<Class<?>, List<InMemoryStore<?>>> registry = new ConcurrentHashMap<>();
+
+    private final Class<T> entityClass;
+    private final EntityMetadata metadata;
+    private final InMemoryFilter.Value id;
+    /**
+     * Columns of the searchable fields outside collections, by field key.
+     */
+    private final Map<String, Column> columns = new HashMap<>();
+    private final List<T> rows = new ArrayList<>();
+    private final Map<Object, Integer> rowsById = new HashMap<>();
+    private final BitSet live = new BitSet();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public InMemoryStore(Class<T> entityClass, Collection<? extends T> entities) {
+        this.entityClass = entityClass;
+        this.metadata = EntityMetadata.of(entityClass, Collections.emptySet());
+
+        var idField = EntityMetadata.idFieldOf(entityClass);
+        this.id = InMemoryFilter.field(new FieldRef(
+                idField.getName(),
+                JPASearchCore.Descriptor.of(List.of(idField)),
+                false
+        ));
+
+        metadata.getDescriptors().forEach((key, descriptor) -> {
+            var path = descriptor.getFieldPath();
+            for (var i = 0; i < path.size() - 1; i++) {
+                if (Collection.class.isAssignableFrom(path.get(i).getType())) {
+                    return;
+                }
+            }
+            columns.put(key, new Column(descriptor, InMemoryFilter.field(new FieldRef(key, descriptor, false))));
+        });
+
+        for (var entity : entities) {
+            add(snapshot(entity));
+        }
+    }
+
+    /**
+     * Registers the store to be updated by {@link InMemoryStoreListener}.
+     */
+    public void register() {
+        registry.computeIfAbsent(entityClass, k -> new CopyOnWriteArrayList<>()).add(this);
+    }
+
+    public void unregister() {
+        var stores = registry.get(entityClass);
+        if (stores != null) {
+            stores.remove(this);
+        }
+    }
+
+    static List<InMemoryStore<?>> registered(Class<?> entityClass) {
+        return registry.getOrDefault(entityClass, Collections.emptyList());
+    }
+
+    /**
+     * Adds the entity, or replaces the entity with the same id.
+     */
+    public void put(T entity) {
+        lock.writeLock().lock();
+        try {
+            var row = rowsById.get(id.get(entity));
+            if (row != null) {
+                removeRow(row);
+            }
+            add(snapshot(entity));
+            if (rows.size() > 1024 && rows.size() > 2 * live.cardinality()) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the entity with the id of {@code entity}, if any.
+     */
+    public void remove(T entity) {
+        lock.writeLock().lock();
+        try {
+            var row = rowsById.get(id.get(entity));
+            if (row != null) {
+                removeRow(row);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Page<T> search(JsonNode filterPayload) {
+        return search(filterPayload, true, true);
+    }
+
+    /**
+     * Searches the store with a payload, paged and sorted by its {@code options}
+     * like {@link JPASearchCore#loadSortAndPagination}. Cursor pagination is not
+     * supported.
+     */
+    public Page<T> search(JsonNode filterPayload, boolean throwsIfNotSortable, boolean throwsIfNotExistsOrNotSearchable) {
+        if (KeysetCursor.isEnabled(filterPayload)) {
+            throw new JPASearchException("Cursor pagination is not supported in memory");
+        }
+        var filter = JPASearchCore.compile(filterPayload, entityClass, throwsIfNotExistsOrNotSearchable);
+        var pageable = JPASearchCore.loadSortAndPagination(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable
+        );
+
+        lock.readLock().lock();
+        try {
+            var matches = matches(filter);
+            var total = matches.cardinality();
+            var ordered = new ArrayList<Integer>(total);
+            for (var row = matches.nextSetBit(0); row >= 0; row = matches.nextSetBit(row + 1)) {
+                ordered.add(row);
+            }
+            if (pageable.getSort().isSorted()) {
+                ordered.sort(comparator(pageable.getSort()));
+            }
+
+            var from = (int) Math.min(pageable.getOffset(), total);
+            var to = Math.min(from + pageable.getPageSize(), total);
+            var content = new ArrayList<T>(to - from);
+            for (var row : ordered.subList(from, to)) {
+                content.add(rows.get(row));
+            }
+            return new PageImpl<>(content, pageable, total);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns all the entities matching the filter, in insertion order.
+     */
+    public List<T> findAll(CompiledFilter<T> filter) {
+        lock.readLock().lock();
+        try {
+            var matches = matches(filter);
+            var content = new ArrayList<T>(matches.cardinality());
+            for (var row = matches.nextSetBit(0); row >= 0; row = matches.nextSetBit(row + 1)) {
+                content.add(rows.get(row));
+            }
+            return content;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private BitSet matches(CompiledFilter<T> filter) {
+        if (filter.getRoot() == null) {
+            return (BitSet) live.clone();
+        }
+        return evaluate(filter, filter.getRoot()).matching;
+    }
+
+    /**
+     * Copies the entity and its nested searchable associations, so that the
+     * rows keep the state they were indexed with while the managed entities
+     * change. Other associations are shared with the entity.
+     */
+    private T snapshot(T entity) {
+        var copy = ReflectionUtils.shallowCopy(entity);
+        var paths = new ArrayList<>(metadata.getAssociations().values());
+        // parents first, so that only copies are modified
+        paths.sort(Comparator.comparingInt(List::size));
+        for (var path : paths) {
+            var parents = List.<Object>of(copy);
+            for (var field : path.subList(0, path.size() - 1)) {
+                parents = children(parents, field);
+            }
+            var field = path.get(path.size() - 1);
+            for (var parent : parents) {
+                copyField(parent, field);
+            }
+        }
+        return copy;
+    }
+
+    private static List<Object> children(List<Object> parents, Field field) {
+        var children = new ArrayList<>();
+        for (var parent : parents) {
+            var value = read(parent, field);
+            if (value instanceof Collection<?> collection) {
+                children.addAll(collection);
+            } else if (value != null) {
+                children.add(value);
+            }
+        }
+        return children;
+    }
+
+    private static void copyField(Object parent, Field field) {
+        var value = read(parent, field);
+        Object copy;
+        if (value instanceof Collection<?> collection) {
+            var elements = collection instanceof Set<?> ? new LinkedHashSet<>() : new ArrayList<>();
+            for (var element : collection) {
+                elements.add(ReflectionUtils.shallowCopy(element));
+            }
+            copy = elements;
+        } else {
+            copy = value == null ? null : ReflectionUtils.shallowCopy(value);
+        }
+        if (copy == null || field.getType().isInstance(copy)) {
+            try {
+                FieldUtils.writeField(field, parent, copy, true);
+            } catch (IllegalAccessException e) {
+                throw new JPASearchException("Cannot copy " + field.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static Object read(Object object, Field field) {
+        try {
+            return FieldUtils.readField(field, ReflectionUtils.unproxy(object), true);
+        } catch (IllegalAccessException e) {
+            throw new JPASearchException("Cannot read " + field.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private void add(T entity) {
+        var row = rows.size();
+        rows.add(entity);
+        live.set(row);
+        rowsById.put(id.get(entity), row);
+        for (var column : columns.values()) {
+            column.add(row, column.reader.get(entity));
+        }
+    }
+
+    private void removeRow(int row) {
+        rowsById.remove(id.get(rows.get(row)));
+        rows.set(row, null);
+        live.clear(row);
+        for (var column : columns.values()) {
+            column.remove(row);
+        }
+    }
+
+    /**
+     * Renumbers the rows without the removed ones.
+     */
+    private void compact() {
+        var entities = new ArrayList<T>(live.cardinality());
+        for (var row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+            entities.add(rows.get(row));
+        }
+        rows.clear();
+        rowsById.clear();
+        live.clear();
+        columns.values().forEach(Column::clear);
+        entities.forEach(this::add);
+    }
+
+    private Comparator<Integer> comparator(Sort sort) {
+        Comparator<Integer> comparator = null;
+        for (var order : sort) {
+            var column = columns.get(order.getProperty());
+            if (column == null) {
+                throw new JPASearchException("Cannot sort by " + order.getProperty() + " in memory");
+            }
+            // nulls sort as the lowest values
+            Comparator<Integer> byColumn = (a, b) -> {
+                var left = column.value(a);
+                var right = column.value(b);
+                if (left == null || right == null) {
+                    return left == right ? 0 : left == null ? -1 : 1;
+                }
+                return InMemoryFilter.compare(left, right);
+            };
+            if (order.isDescending()) {
+                byColumn = byColumn.reversed();
+            }
+            comparator = comparator == null ? byColumn : comparator.thenComparing(byColumn);
+        }
+        return comparator;
+    }
+
+    /**
+     * Rows where a subtree is true and where it is false, the others are unknown.
+     */
+    private static class Result {
+        private final BitSet matching;
+        private final BitSet failing;
+
+        private Result(BitSet matching, BitSet failing) {
+            this.matching = matching;
+            this.failing = failing;
+        }
+    }
+
+    private Result evaluate(CompiledFilter<T> filter, Node node) {
+        if (node instanceof Call call) {
+            var function = call.getOperator().getExprFunction();
+            var arguments = call.getArguments();
+            if (function == JPASearchFunctions.AND || function == JPASearchFunctions.OR) {
+                var and = function == JPASearchFunctions.AND;
+                var matching = and ? (BitSet) live.clone() : new BitSet();
+                var failing = and ? new BitSet() : (BitSet) live.clone();
+                for (var argument : arguments) {
+                    var result = evaluate(filter, argument);
+                    if (and) {
+                        matching.and(result.matching);
+                        failing.or(result.failing);
+                    } else {
+                        matching.or(result.matching);
+                        failing.and(result.failing);
+                    }
+                }
+                return new Result(matching, failing);
+            } else if (function == JPASearchFunctions.NOT) {
+                var result = evaluate(filter, arguments.get(0));
+                return new Result(result.failing, result.matching);
+            }
+
+            var matching = indexed(filter, call);
+            if (matching != null) {
+                var column = columns.get(((FieldRef) arguments.get(0)).getKey());
+                var failing = (BitSet) live.clone();
+                failing.andNot(matching);
+                if (function != JPASearchFunctions.NULL) {
+                    failing.andNot(column.nulls);
+                }
+                return new Result(matching, failing);
+            }
+        }
+
+        return scan(filter.condition(node));
+    }
+
+    /**
+     * Returns the rows matching a comparison of an indexed field with values,
+     * or {@code null} if the call cannot be answered from the indexes.
+     */
+    private BitSet indexed(CompiledFilter<T> filter, Call call) {
+        var function = call.getOperator().getExprFunction();
+        var arguments = call.getArguments();
+        if (arguments.isEmpty() || !(arguments.get(0) instanceof FieldRef field) || field.isLowerCase()) {
+            return null;
+        }
+        var column = columns.get(field.getKey());
+        if (column == null || column.descriptor != field.getDescriptor()) {
+            return null;
+        }
+
+        var values = new Object[arguments.size() - 1];
+        for (var i = 1; i < arguments.size(); i++) {
+            if (!(arguments.get(i) instanceof Literal literal) || literal.isRaw()) {
+                return null;
+            }
+            values[i - 1] = filter.getValues()[literal.getSlot()];
+            if (values[i - 1] == null) {
+                return null;
+            }
+        }
+
+        if (function == JPASearchFunctions.NULL && values.length == 0) {
+            return (BitSet) column.nulls.clone();
+        } else if (function == JPASearchFunctions.EQ && values.length == 1) {
+            return column.equal(values[0]);
+        } else if (function == JPASearchFunctions.IN && values.length > 0) {
+            var matching = new BitSet();
+            for (var value : values) {
+                var rowsOfValue = column.equal(value);
+                if (rowsOfValue == null) {
+                    return null;
+                }
+                matching.or(rowsOfValue);
+            }
+            return matching;
+        } else if (function == JPASearchFunctions.GT && values.length == 1) {
+            return column.range(values[0], false, null, false);
+        } else if (function == JPASearchFunctions.GTE && values.length == 1) {
+            return column.range(values[0], true, null, false);
+        } else if (function == JPASearchFunctions.LT && values.length == 1) {
+            return column.range(null, false, values[0], false);
+        } else if (function == JPASearchFunctions.LTE && values.length == 1) {
+            return column.range(null, false, values[0], true);
+        } else if (function == JPASearchFunctions.BETWEEN && values.length == 2) {
+            return column.range(values[0], true, values[1], true);
+        }
+        return null;
+    }
+
+    private Result scan(InMemoryFilter.Condition condition) {
+        var matching = new BitSet();
+        var failing = new BitSet();
+        for (var row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+            var result = condition.test(rows.get(row));
+            if (result == Boolean.TRUE) {
+                matching.set(row);
+            } else if (result == Boolean.FALSE) {
+                failing.set(row);
+            }
+        }
+        return new Result(matching, failing);
+    }
+
+    /**
+     * Values of a field by row, with an index of the rows of each value.
+     */
+    private static class Column {
+        private final JPASearchCore.Descriptor descriptor;
+        private final InMemoryFilter.Value reader;
+        /**
+         * Rows by value, sorted if the values are comparable.
+         */
+        private final Map<Object, BitSet> index;
+        private final BitSet nulls = new BitSet();
+        private Object[] values = new Object[16];
+
+        private Column(JPASearchCore.Descriptor descriptor, InMemoryFilter.Value reader) {
+            this.descriptor = descriptor;
+            this.reader = reader;
+            var type = descriptor.getFieldType();
+            this.index = type.isPrimitive() || Comparable.class.isAssignableFrom(type)
+                    ? new TreeMap<>(InMemoryFilter::compare)
+                    : new HashMap<>();
+        }
+
+        private Object value(int row) {
+            return values[row];
+        }
+
+        private void add(int row, Object value) {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, Math.max(row + 1, values.length * 2));
+            }
+            values[row] = value;
+            if (value == null) {
+                nulls.set(row);
+            } else {
+                index.computeIfAbsent(value, k -> new BitSet()).set(row);
+            }
+        }
+
+        private void remove(int row) {
+            var value = values[row];
+            values[row] = null;
+            if (value == null) {
+                nulls.clear(row);
+                return;
+            }
+            var rowsOfValue = index.get(value);
+            rowsOfValue.clear(row);
+            if (rowsOfValue.isEmpty()) {
+                index.remove(value);
+            }
+        }
+
+        private void clear() {
+            index.clear();
+            nulls.clear();
+            values = new Object[16];
+        }
+
+        /**
+         * Returns whether the sorted index can compare {@code value} with its
+         * values, e.g. not a non-numeric string with numbers.
+         */
+        private boolean accepts(Object value) {
+            return !(index instanceof NavigableMap<Object, BitSet> sorted)
+                    || sorted.isEmpty()
+                    || InMemoryFilter.compareOrUnknown(sorted.firstKey(), value) != null;
+        }
+
+        /**
+         * Returns the rows having {@code value}, or {@code null} if the value
+         * cannot be looked up from the index.
+         */
+        private BitSet equal(Object value) {
+            if (index instanceof HashMap && !descriptor.getFieldType().isInstance(value) || !accepts(value)) {
+                return null;
+            }
+            var rowsOfValue = index.get(value);
+            return rowsOfValue == null ? new BitSet() : (BitSet) rowsOfValue.clone();
+        }
+
+        private BitSet range(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+            if (!(index instanceof NavigableMap<Object, BitSet> sorted)
+                    || from != null && !accepts(from)
+                    || to != null && !accepts(to)) {
+                return null;
+            }
+            if (from != null && to != null) {
+                var order = InMemoryFilter.compareOrUnknown(from, to);
+                if (order == null) {
+                    return null;
+                } else if (order > 0) {
+                    return new BitSet();
+                }
+            }
+            NavigableMap<Object, BitSet> range = sorted;
+            if (from != null) {
+                range = range.tailMap(from, fromInclusive);
+            }
+            if (to != null) {
+                range = range.headMap(to, toInclusive);
+            }
+            var matching = new BitSet();
+            for (var rowsOfValue : range.values()) {
+                matching.or(rowsOfValue);
+            }
+            return matching;
+        }
+    }
+}
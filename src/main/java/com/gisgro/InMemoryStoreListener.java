@@ -0,0 +1,85 @@
+package com.gisgro;
+
+import lombok.Value;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Entity listener updating the {@link InMemoryStore#register() registered}
+ * stores of the entity class, register it with
+ * {@code @EntityListeners(InMemoryStoreListener.class)}.
+ * <p>
+ * The events are raised when the changes are flushed, so within a Spring
+ * managed transaction the changes are collected and applied to the stores
+ * only after the transaction commits, with the state of the entities at that
+ * time. Without a transaction synchronization they are applied at once.
+ */
+public class InMemoryStoreListener {
+    private static final Object PENDING_KEY = new Object();
+
+    @PostPersist
+    @PostUpdate
+    public void afterSave(Object entity) {
+        onChange(entity, false);
+    }
+
+    @PostRemove
+    public void afterRemove(Object entity) {
+        onChange(entity, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void onChange(Object entity, boolean removed) {
+        if (InMemoryStore.registered(entity.getClass()).isEmpty()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            apply(entity, removed);
+            return;
+        }
+
+        var pending = (List<Change>) TransactionSynchronizationManager.getResource(PENDING_KEY);
+        if (pending == null) {
+            var changes = new ArrayList<Change>();
+            TransactionSynchronizationManager.bindResource(PENDING_KEY, changes);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    for (var change : changes) {
+                        apply(change.entity, change.removed);
+                    }
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(PENDING_KEY);
+                }
+            });
+            pending = changes;
+        }
+        pending.add(new Change(entity, removed));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void apply(Object entity, boolean removed) {
+        for (var store : InMemoryStore.registered(entity.getClass())) {
+            if (removed) {
+                ((InMemoryStore<Object>) store).remove(entity);
+            } else {
+                ((InMemoryStore<Object>) store).put(entity);
+            }
+        }
+    }
+
+    @Value
+    private static class Change {
+        Object entity;
+        boolean removed;
+    }
+}
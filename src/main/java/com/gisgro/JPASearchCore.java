@@ -4,21 +4,17 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.gisgro.annotations.Searchable;
 import com.gisgro.exceptions.InvalidFieldException;
 import com.gisgro.exceptions.JPASearchException;
-import com.gisgro.model.Operator;
+import com.gisgro.model.EntityMetadata;
 import com.gisgro.model.SearchType;
-import com.gisgro.utils.ReflectionUtils;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.Specification;
 
-import javax.persistence.criteria.*;
 import java.lang.reflect.Field;
 import java.util.*;
 
-import static com.gisgro.JPASearchFunctions.getPath;
-
 public class JPASearchCore {
     public static <R, T> Specification<R> specification(
             JsonNode filterPayload,
@@ -39,152 +35,111 @@ public class JPASearchCore {
             boolean throwsIfNotExistsOrNotSearchable,
             Set<Class<?>> searchableSubclasses
     ) {
-        HashSet<Class<?>> entityClasses = new HashSet<>(searchableSubclasses);
-        entityClasses.add(entityClass);
-
-        var filterExpression = filterPayload.get("filter");
-
-        return (root, query, criteriaBuilder) -> {
-            var searchableFields = ReflectionUtils.getAllSearchableFields(entityClasses);
-            var expr = processExpression(
-                    filterExpression,
-                    criteriaBuilder,
-                    root,
-                    query,
-                    entityClass,
-                    entityClasses,
-                    throwsIfNotExistsOrNotSearchable,
-                    searchableFields
-            );
-            if (expr instanceof Predicate) {
-                return (Predicate) expr;
-            } else {
-                throw new JPASearchException("Not resulting a predicate" + expr);
-            }
-        };
+        return specification(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
     }
 
-    private static <T> Object processValue(
-            Operator op,
-            JsonNode node,
-            CriteriaBuilder cb,
-            Root<?> root,
-            CriteriaQuery<?> query,
-            Class<?> entityClass,
-            Set<Class<?>> entityClasses,
-            boolean throwsIfNotExistsOrNotSearchable,
-            Map<String, List<Field>> searchableFields
+    public static <R, T> Specification<R> specification(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable
     ) {
-        if (node.isTextual()) {
-            var text = node.asText();
-            if (Objects.equals(op.getName(), "field")) {
-                return processField(
-                        cb,
-                        root,
-                        throwsIfNotExistsOrNotSearchable,
-                        searchableFields,
-                        text
-                );
-            } else if (!op.isEvaluateStrings()) {
-                return text;
-            } else {
-                return cb.literal(text);
-            }
-        } else if (node.isInt()) {
-            return cb.literal(node.asInt());
-        } else if (node.isLong()) {
-            return cb.literal(node.asLong());
-        } else if (node.isDouble()) {
-            return cb.literal(node.asDouble());
-        } else if (node.isBoolean()) {
-            return cb.literal(node.asBoolean());
-        } else if (node.isArray()) {
-            return processExpression(
-                    node,
-                    cb,
-                    root,
-                    query,
-                    entityClass,
-                    entityClasses,
-                    throwsIfNotExistsOrNotSearchable,
-                    searchableFields
-            );
-        } else if (node.isNull()) {
-            return cb.nullLiteral(entityClass);
-        } else {
-            throw new JPASearchException("unexpected: " + node);
-        }
+        return specification(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                Collections.emptySet()
+        );
     }
 
-    private static <T, U extends T> Expression<?> processField(
-            CriteriaBuilder cb,
-            Root<T> root,
+    /**
+     * Like {@link #specification(JsonNode, Class, boolean, Set)}, with the sort keys of a cursor
+     * checked as {@link #loadSortAndPagination} checks them.
+     */
+    public static <R, T> Specification<R> specification(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotSortable,
             boolean throwsIfNotExistsOrNotSearchable,
-            Map<String, List<Field>> searchableFields,
-            String text
+            Set<Class<?>> searchableSubclasses
     ) {
-        var descriptor = loadDescriptor(
-                text,
+        var filter = compile(
+                filterPayload,
+                entityClass,
                 throwsIfNotExistsOrNotSearchable,
-                false,
-                false,
-                searchableFields
+                searchableSubclasses
+        );
+        var cursor = KeysetCursor.load(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
         );
-        if (descriptor == null) {
-            return null;
-        }
 
-        var path = getPath(cb, root, descriptor);
-        var field = descriptor.fieldPath.get(descriptor.fieldPath.size() - 1);
-        var searchable = field.getAnnotation(Searchable.class);
+        var fetchPlan = FetchPlan.load(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
 
-        if (searchable.trim() && descriptor.searchType == SearchType.STRING) {
-            return cb.trim(path.as(String.class));
-        } else if (field.getType().isEnum()) {
-            return path.as(field.getType());
+        if ((cursor == null || cursor.getValues() == null) && fetchPlan == null) {
+            return specification(filter);
         }
 
-        return path;
+        return (root, query, criteriaBuilder) -> {
+            if (fetchPlan != null) {
+                fetchPlan.applyTo(root, query);
+            }
+
+            // one context, so that the filter and the seek predicate share their joins
+            var context = new QueryContext(criteriaBuilder, root, query, null);
+            var predicate = filter.toPredicate(context);
+            var seek = cursor == null ? null : cursor.toPredicate(context);
+            if (predicate == null || seek == null) {
+                return predicate == null ? seek : predicate;
+            }
+            return criteriaBuilder.and(predicate, seek);
+        };
     }
 
-    private static Expression<?> processExpression(
-            JsonNode node,
-            CriteriaBuilder cb,
-            Root<?> root,
-            CriteriaQuery<?> query,
-            Class<?> entityClass,
-            Set<Class<?>> entityClasses,
-            boolean throwsIfNotExistsOrNotSearchable,
-            Map<String, List<Field>> searchableFields
+    public static <R> Specification<R> specification(CompiledFilter<?> filter) {
+        return filter.toSpecification();
+    }
+
+    public static <T> CompiledFilter<T> compile(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable
     ) {
-        if (!node.isArray() || node.isEmpty() || !node.get(0).isTextual()) {
-            throw new JPASearchException("Invalid expression");
-        }
+        return compile(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                Collections.emptySet()
+        );
+    }
 
-        var op = Operator.load(node.get(0).textValue());
-        var arguments = new ArrayList<>();
-
-        for (var i = 1; i < node.size(); i++) {
-            var child = node.get(i);
-            arguments.add(
-                    processValue(
-                            op,
-                            child,
-                            cb,
-                            root,
-                            query,
-                            entityClass,
-                            entityClasses,
-                            throwsIfNotExistsOrNotSearchable,
-                            searchableFields
-                    )
-            );
-        }
-        if (op.isEvaluateStrings()) {
-            return op.getExprFunction().apply(cb, arguments.toArray(new Expression[0]));
-        } else {
-            return op.getObjFunction().apply(root, query, cb, arguments.toArray(), searchableFields);
-        }
+    public static <T> CompiledFilter<T> compile(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        return FilterPlanCache.getDefault().compile(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
     }
 
     public static Sort loadSort(
@@ -195,7 +150,7 @@ public class JPASearchCore {
     ) {
         ArrayList<Sort.Order> orderSpecs = new ArrayList<>();
         var options = filterPayload.get("options");
-        var searchableFields = ReflectionUtils.getAllSearchableFields(entityClasses);
+        var metadata = EntityMetadata.of(entityClasses);
         if (options != null) {
             var sortKeysNode = options.get("sortKey");
             if (sortKeysNode != null) {
@@ -220,7 +175,7 @@ public class JPASearchCore {
                             throwsIfNotExistsOrNotSearchable,
                             true,
                             throwsIfNotSortable,
-                            searchableFields
+                            metadata
                     );
 
                     if (descending) {
@@ -262,6 +217,7 @@ public class JPASearchCore {
         Integer pageSize = null;
         Integer pageOffset = null;
         Sort sort = null;
+        var cursorMode = KeysetCursor.isEnabled(filterPayload);
 
         var options = filterPayload.get("options");
 
@@ -273,8 +229,16 @@ public class JPASearchCore {
                     throwsIfNotExistsOrSearchable
             );
 
+            if (cursorMode) {
+                // the cursor selects the page, and the id breaks ties between equal sort keys
+                var idField = EntityMetadata.idFieldOf(entityClass).getName();
+                if (sort.getOrderFor(idField) == null) {
+                    sort = sort.and(Sort.by(Sort.Order.asc(idField)));
+                }
+            }
+
             var pageOffsetNode = options.get("pageOffset");
-            if (pageOffsetNode != null) {
+            if (pageOffsetNode != null && !cursorMode) {
                 pageOffset = pageOffsetNode.asInt();
             }
             var pageSizeNode = options.get("pageSize");
@@ -298,6 +262,53 @@ public class JPASearchCore {
         return result;
     }
 
+    public static String nextCursor(
+            List<?> content,
+            JsonNode filterPayload,
+            Class<?> entityClass,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable
+    ) {
+        return nextCursor(
+                content,
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                Collections.emptySet()
+        );
+    }
+
+    /**
+     * Returns the cursor token for the page after {@code content}, or {@code null}
+     * if the page was empty.
+     */
+    public static String nextCursor(
+            List<?> content,
+            JsonNode filterPayload,
+            Class<?> entityClass,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        if (content.isEmpty()) {
+            return null;
+        }
+
+        var cursor = KeysetCursor.load(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        if (cursor == null) {
+            throw new JPASearchException("Cursor mode is not enabled");
+        }
+
+        return cursor.encode(content.get(content.size() - 1));
+    }
+
     public static Descriptor loadDescriptor(
             String key,
             boolean throwsIfNotExistsOrNotSortable,
@@ -305,7 +316,40 @@ public class JPASearchCore {
             boolean throwsIfNotSortable,
             Map<String, List<Field>> searchableFields
     ) {
-        if (!searchableFields.containsKey(key)) {
+        var path = searchableFields.get(key);
+        return checkDescriptor(
+                key,
+                path == null ? null : Descriptor.of(path),
+                throwsIfNotExistsOrNotSortable,
+                checkSortable,
+                throwsIfNotSortable
+        );
+    }
+
+    public static Descriptor loadDescriptor(
+            String key,
+            boolean throwsIfNotExistsOrNotSortable,
+            boolean checkSortable,
+            boolean throwsIfNotSortable,
+            EntityMetadata metadata
+    ) {
+        return checkDescriptor(
+                key,
+                metadata.getDescriptors().get(key),
+                throwsIfNotExistsOrNotSortable,
+                checkSortable,
+                throwsIfNotSortable
+        );
+    }
+
+    private static Descriptor checkDescriptor(
+            String key,
+            Descriptor descriptor,
+            boolean throwsIfNotExistsOrNotSortable,
+            boolean checkSortable,
+            boolean throwsIfNotSortable
+    ) {
+        if (descriptor == null) {
 
             if (throwsIfNotExistsOrNotSortable) {
                 throw new InvalidFieldException("Field [" + key + "] does not exists or not sortable", key);
@@ -314,15 +358,11 @@ public class JPASearchCore {
             return null;
         }
 
-        var path = searchableFields.get(key);
-        var field = path.get(path.size() - 1);
-        var searchable = field.getAnnotation(Searchable.class);
-
-        if (searchable == null) {
+        if (descriptor.searchable == null) {
             return null;
         }
 
-        if (checkSortable && !searchable.sortable()) {
+        if (checkSortable && !descriptor.searchable.sortable()) {
             if (throwsIfNotSortable) {
                 throw new InvalidFieldException("Field [" + key + "] is not sortable", key);
             }
@@ -330,11 +370,7 @@ public class JPASearchCore {
             return null;
         }
 
-        var searchType = SearchType.UNTYPED.equals(searchable.targetType())
-                ? SearchType.load(field.getType(), SearchType.STRING)
-                : searchable.targetType();
-
-        return new Descriptor(searchType, path);
+        return descriptor;
     }
 
     @Data
@@ -342,5 +378,26 @@ public class JPASearchCore {
     public static class Descriptor {
         private SearchType searchType;
         private List<Field> fieldPath;
+        private Searchable searchable;
+        private Class<?> fieldType;
+
+        public Descriptor(SearchType searchType, List<Field> fieldPath) {
+            this(
+                    searchType,
+                    fieldPath,
+                    fieldPath.get(fieldPath.size() - 1).getAnnotation(Searchable.class),
+                    fieldPath.get(fieldPath.size() - 1).getType()
+            );
+        }
+
+        public static Descriptor of(List<Field> fieldPath) {
+            var field = fieldPath.get(fieldPath.size() - 1);
+            var searchable = field.getAnnotation(Searchable.class);
+            var searchType = searchable == null || SearchType.UNTYPED.equals(searchable.targetType())
+                    ? SearchType.load(field.getType(), SearchType.STRING)
+                    : searchable.targetType();
+
+            return new Descriptor(searchType, List.copyOf(fieldPath), searchable, field.getType());
+        }
     }
 }
@@ -0,0 +1,1023 @@
+package com.gisgro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.model.CountStrategy;
+import com.gisgro.model.EntityMetadata;
+import com.gisgro.model.SearchPage;
+import com.gisgro.utils.CountEstimator;
+import com.gisgro.utils.LruCache;
+import lombok.Setter;
+import lombok.Value;
+import org.springframework.data.domain.*;
+import org.springframework.data.support.PageableExecutionUtils;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.gisgro.JPASearchFunctions.getPath;
+import static org.springframework.data.jpa.repository.query.QueryUtils.toOrders;
+
+/**
+ * Runs compiled filters directly against an {@link EntityManager}.
+ * <p>
+ * Unlike a {@code Specification} passed to a Spring Data repository, the
+ * executor creates the queries itself, so the filter values are bound as
+ * query parameters instead of being inlined as literals (unless
+ * {@code bindParameters} is turned off). Filters with the same shape then
+ * produce the same SQL and hit the query plan and statement caches.
+ */
+public class JPASearchExecutor {
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /**
+     * Cached counts of all the executors, by entity manager factory and {@link #countCacheScope}.
+     */
+    private static final LruCache<CountKey, CachedCount> countCache = new LruCache<>(10000);
+
+    private final EntityManager entityManager;
+    private final boolean bindParameters;
+    @Setter
+    private CountEstimator countEstimator;
+    /**
+     * Scope of the cached counts within the entity manager factory, e.g. the
+     * tenant when tenants share the factory, so they never see each other's counts.
+     */
+    @Setter
+    private String countCacheScope;
+    /**
+     * JDBC fetch size of streamed queries.
+     */
+    @Setter
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    /**
+     * Number of streamed rows after which the persistence context is cleared,
+     * {@code 0} to never clear it.
+     */
+    @Setter
+    private int clearInterval = DEFAULT_FETCH_SIZE;
+    /**
+     * Runs the queries of the facets in parallel, each with an entity manager
+     * of its own, or {@code null} to run them one by one. Parallel queries do
+     * not see the uncommitted changes of the current transaction.
+     */
+    @Setter
+    private Executor facetExecutor;
+
+    public JPASearchExecutor(EntityManager entityManager) {
+        this(entityManager, true);
+    }
+
+    public JPASearchExecutor(EntityManager entityManager, boolean bindParameters) {
+        this.entityManager = entityManager;
+        this.bindParameters = bindParameters;
+    }
+
+    public static LruCache.Statistics getCountCacheStatistics() {
+        return countCache.getStatistics();
+    }
+
+    public <T> Slice<T> search(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable
+    ) {
+        return search(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                Collections.emptySet()
+        );
+    }
+
+    /**
+     * Runs a paged search from the whole payload: the filter, the sort and
+     * pagination options, the cursor and the count strategy. Returns a
+     * {@link Page} unless the count strategy is {@code none}.
+     * <p>
+     * Filters joining a collection, payloads fetching a collection, and payloads
+     * with {@code "twoPhase": true} in {@code options}, are paged with {@link #findAllByIds}.
+     */
+    public <T> Slice<T> search(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        var filter = JPASearchCore.compile(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        var cursor = KeysetCursor.load(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        var pageable = JPASearchCore.loadSortAndPagination(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        var countStrategy = CountStrategy.load(filterPayload);
+        var fetchPlan = FetchPlan.load(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+
+        if (filter.joinsCollections() || isTwoPhase(filterPayload)) {
+            return findAllByIds(filter, cursor, pageable, countStrategy, fetchPlan);
+        }
+        return findAll(filter, cursor, pageable, countStrategy, fetchPlan);
+    }
+
+    public <T> Slice<Map<String, Object>> searchFields(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable
+    ) {
+        return searchFields(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                Collections.emptySet()
+        );
+    }
+
+    /**
+     * Like {@link #search(JsonNode, Class, boolean, boolean, Set)}, but selects
+     * only the fields of {@code options.fields}, returned as maps keyed by the
+     * field keys. A filter joining a collection selects each entity once,
+     * but a selected field in a collection selects a row per element.
+     */
+    public <T> Slice<Map<String, Object>> searchFields(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        var filter = JPASearchCore.compile(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        var projection = loadProjection(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        var cursor = KeysetCursor.load(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        var pageable = JPASearchCore.loadSortAndPagination(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+
+        return page(
+                createTupleQuery(filter, cursor, pageable.getSort(), projection),
+                rows -> toMaps(rows, projection),
+                filter,
+                cursor,
+                pageable,
+                CountStrategy.load(filterPayload)
+        );
+    }
+
+    /**
+     * Like {@link #searchFields(JsonNode, Class, boolean, boolean, Set)}, but
+     * constructs {@code resultClass} (e.g. a record) from the fields, passed to
+     * its constructor in the order of {@code options.fields}.
+     */
+    public <T, R> Slice<R> searchFields(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            Class<R> resultClass,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        var filter = JPASearchCore.compile(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        var projection = loadProjection(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        var cursor = KeysetCursor.load(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        var pageable = JPASearchCore.loadSortAndPagination(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+
+        return page(
+                createQuery(filter, cursor, pageable.getSort(), projection, resultClass),
+                rows -> rows,
+                filter,
+                cursor,
+                pageable,
+                CountStrategy.load(filterPayload)
+        );
+    }
+
+    public <T> List<Map<String, Object>> findFields(CompiledFilter<T> filter, Projection projection, Sort sort) {
+        if (filter.matchesNothing()) {
+            return new ArrayList<>();
+        }
+        return toMaps(createTupleQuery(filter, null, sort, projection).getResultList(), projection);
+    }
+
+    public <T, R> List<R> findFields(CompiledFilter<T> filter, Projection projection, Sort sort, Class<R> resultClass) {
+        if (filter.matchesNothing()) {
+            return new ArrayList<>();
+        }
+        return createQuery(filter, null, sort, projection, resultClass).getResultList();
+    }
+
+    public <T> Stream<T> stream(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable
+    ) {
+        return stream(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable,
+                Collections.emptySet()
+        );
+    }
+
+    /**
+     * Streams all the rows matching the payload in the order of its sort keys,
+     * ignoring the pagination options. See {@link #stream(CompiledFilter, Sort)}.
+     */
+    public <T> Stream<T> stream(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        return stream(
+                JPASearchCore.compile(
+                        filterPayload,
+                        entityClass,
+                        throwsIfNotExistsOrNotSearchable,
+                        searchableSubclasses
+                ),
+                JPASearchCore.loadSort(
+                        filterPayload,
+                        EntityMetadata.of(entityClass, searchableSubclasses).getEntityClasses(),
+                        throwsIfNotSortable,
+                        throwsIfNotExistsOrNotSearchable
+                )
+        );
+    }
+
+    /**
+     * Streams the matching rows from a forward-only cursor, for exports too
+     * large to load as a list. The entities are read-only, and the persistence
+     * context is cleared every {@code clearInterval} rows, so earlier rows are
+     * detached once the stream has moved past them and memory stays flat.
+     * Each entity is streamed once, also when the filter joins a collection.
+     * <p>
+     * The stream must be consumed within a transaction and closed after use,
+     * e.g. with try-with-resources.
+     */
+    public <T> Stream<T> stream(CompiledFilter<T> filter, Sort sort) {
+        if (filter.matchesNothing()) {
+            return Stream.empty();
+        }
+
+        var query = createQuery(filter, null, sort);
+        query.setHint("org.hibernate.fetchSize", fetchSize);
+        query.setHint("org.hibernate.readOnly", true);
+
+        var rows = query.getResultStream();
+        var iterator = rows.iterator();
+        var spliterator = new Spliterators.AbstractSpliterator<T>(
+                Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL
+        ) {
+            private long count;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                // clear before reading the next row, after the previous one has been consumed
+                if (clearInterval > 0 && count > 0 && count % clearInterval == 0) {
+                    entityManager.clear();
+                }
+                if (!iterator.hasNext()) {
+                    return false;
+                }
+                count++;
+                action.accept(iterator.next());
+                return true;
+            }
+        };
+
+        return StreamSupport.stream(spliterator, false).onClose(rows::close);
+    }
+
+    public <T> List<T> findAll(CompiledFilter<T> filter) {
+        return findAll(filter, Sort.unsorted());
+    }
+
+    public <T> List<T> findAll(CompiledFilter<T> filter, Sort sort) {
+        if (filter.matchesNothing()) {
+            return new ArrayList<>();
+        }
+        return createQuery(filter, null, sort).getResultList();
+    }
+
+    public <T> Page<T> findAll(CompiledFilter<T> filter, Pageable pageable) {
+        return (Page<T>) findAll(filter, null, pageable, CountStrategy.EXACT);
+    }
+
+    public <T> Slice<T> findAll(
+            CompiledFilter<T> filter,
+            KeysetCursor cursor,
+            Pageable pageable,
+            CountStrategy countStrategy
+    ) {
+        return findAll(filter, cursor, pageable, countStrategy, null);
+    }
+
+    /**
+     * Pages the matching entities, loading the associations of {@code fetchPlan}
+     * (if not {@code null}) with an entity graph on the data query. A plan
+     * fetching a collection is paged with {@link #findAllByIds} instead, as a
+     * fetched collection would repeat the rows that the limit applies to.
+     */
+    public <T> Slice<T> findAll(
+            CompiledFilter<T> filter,
+            KeysetCursor cursor,
+            Pageable pageable,
+            CountStrategy countStrategy,
+            FetchPlan fetchPlan
+    ) {
+        if (fetchPlan != null && fetchPlan.isFetchingCollections()) {
+            return findAllByIds(filter, cursor, pageable, countStrategy, fetchPlan);
+        }
+        var query = createQuery(filter, cursor, pageable.getSort());
+        applyFetchPlan(query, fetchPlan, filter.getEntityClass());
+        return page(query, rows -> rows, filter, cursor, pageable, countStrategy);
+    }
+
+    /**
+     * Pages in two phases: a narrow {@code SELECT DISTINCT id} query applies the
+     * filter, sort and limit, and then the entities of the page are loaded by
+     * their ids. The page size is then correct even when the filter joins a
+     * collection, and the entity load (with any fetch joins) only touches the
+     * rows of the page.
+     */
+    public <T> Slice<T> findAllByIds(
+            CompiledFilter<T> filter,
+            KeysetCursor cursor,
+            Pageable pageable,
+            CountStrategy countStrategy
+    ) {
+        return findAllByIds(filter, cursor, pageable, countStrategy, null);
+    }
+
+    public <T> Slice<T> findAllByIds(
+            CompiledFilter<T> filter,
+            KeysetCursor cursor,
+            Pageable pageable,
+            CountStrategy countStrategy,
+            FetchPlan fetchPlan
+    ) {
+        return page(
+                createIdQuery(filter, cursor, pageable.getSort()),
+                rows -> loadByIds(filter.getEntityClass(), rows, fetchPlan),
+                filter,
+                cursor,
+                pageable,
+                countStrategy
+        );
+    }
+
+    /**
+     * Runs the data query of a page, converting its rows with {@code converter},
+     * and the count query of {@code countStrategy}.
+     */
+    private <Q, R> Slice<R> page(
+            TypedQuery<Q> query,
+            Function<List<Q>, List<R>> converter,
+            CompiledFilter<?> filter,
+            KeysetCursor cursor,
+            Pageable pageable,
+            CountStrategy countStrategy
+    ) {
+        if (countStrategy.getType() == CountStrategy.Type.ESTIMATE && countEstimator == null) {
+            throw new JPASearchException("Estimated count requires a CountEstimator, see setCountEstimator");
+        }
+        if (filter.matchesNothing()) {
+            return countStrategy.getType() == CountStrategy.Type.NONE
+                    ? new SliceImpl<>(new ArrayList<>(), pageable, false)
+                    : new PageImpl<>(new ArrayList<>(), pageable, 0);
+        }
+
+        if (pageable.isUnpaged()) {
+            return new PageImpl<>(converter.apply(query.getResultList()));
+        }
+
+        query.setFirstResult((int) pageable.getOffset());
+
+        if (countStrategy.getType() == CountStrategy.Type.NONE) {
+            // fetch one extra row to see whether there is a next page
+            query.setMaxResults(pageable.getPageSize() + 1);
+            var content = converter.apply(query.getResultList());
+            var hasNext = content.size() > pageable.getPageSize();
+            return new SliceImpl<>(
+                    hasNext ? content.subList(0, pageable.getPageSize()) : content,
+                    pageable,
+                    hasNext
+            );
+        }
+
+        switch (countStrategy.getType()) {
+            case CAPPED -> {
+                var limit = countStrategy.getLimit();
+                var count = countCapped(filter, cursor, limit);
+                return searchPage(query, converter, pageable, Math.min(count, limit), count <= limit);
+            }
+            case ESTIMATE -> {
+                var estimate = countEstimator.estimate(entityManager, filter);
+                if (estimate != null) {
+                    return searchPage(query, converter, pageable, estimate, false);
+                }
+            }
+        }
+
+        query.setMaxResults(pageable.getPageSize());
+        var content = converter.apply(query.getResultList());
+
+        if (countStrategy.getType() == CountStrategy.Type.CACHED) {
+            return PageableExecutionUtils.getPage(
+                    content,
+                    pageable,
+                    () -> countCached(filter, cursor, countStrategy)
+            );
+        }
+        return PageableExecutionUtils.getPage(
+                content,
+                pageable,
+                () -> count(filter, cursor)
+        );
+    }
+
+    /**
+     * Runs the data query of a page with a capped or estimated total, which
+     * cannot tell whether there is a next page: one extra row is fetched for that.
+     */
+    private <Q, R> SearchPage<R> searchPage(
+            TypedQuery<Q> query,
+            Function<List<Q>, List<R>> converter,
+            Pageable pageable,
+            long total,
+            boolean totalExact
+    ) {
+        query.setMaxResults(pageable.getPageSize() + 1);
+        var rows = query.getResultList();
+        var hasNext = rows.size() > pageable.getPageSize();
+        return new SearchPage<>(
+                converter.apply(hasNext ? rows.subList(0, pageable.getPageSize()) : rows),
+                pageable,
+                total,
+                totalExact,
+                hasNext
+        );
+    }
+
+    public <T> Map<String, Map<Object, Long>> facets(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable
+    ) {
+        return facets(filterPayload, entityClass, throwsIfNotExistsOrNotSearchable, Collections.emptySet());
+    }
+
+    /**
+     * Counts the values of the fields of {@code options.facets} over the rows
+     * matching the filter of the payload, see {@link #facets(CompiledFilter, Facets)}.
+     */
+    public <T> Map<String, Map<Object, Long>> facets(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        var facets = Facets.load(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        if (facets == null) {
+            return new LinkedHashMap<>();
+        }
+        var filter = JPASearchCore.compile(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        return facets(filter, facets);
+    }
+
+    /**
+     * Counts the matching rows per value of each faceted field, with one
+     * {@code GROUP BY} query per field, ordered by descending count. The
+     * counts of a field ignore the top-level conditions on that field only,
+     * so that they show how many rows the other values of the field would add.
+     */
+    public <T> Map<String, Map<Object, Long>> facets(CompiledFilter<T> filter, Facets facets) {
+        var result = new LinkedHashMap<String, Map<Object, Long>>();
+        if (facetExecutor == null || facets.getFields().size() < 2) {
+            facets.getFields().forEach((key, descriptor) ->
+                    result.put(key, countValues(filter.withoutConditionsOn(key), descriptor)));
+            return result;
+        }
+
+        var factory = entityManager.getEntityManagerFactory();
+        var futures = new LinkedHashMap<String, CompletableFuture<Map<Object, Long>>>();
+        facets.getFields().forEach((key, descriptor) -> futures.put(key, CompletableFuture.supplyAsync(() -> {
+            var facetEntityManager = factory.createEntityManager();
+            try {
+                return new JPASearchExecutor(facetEntityManager, bindParameters)
+                        .countValues(filter.withoutConditionsOn(key), descriptor);
+            } finally {
+                facetEntityManager.close();
+            }
+        }, facetExecutor)));
+        futures.forEach((key, future) -> {
+            try {
+                result.put(key, future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw new JPASearchException("Facet [" + key + "] failed: " + e.getCause());
+            }
+        });
+        return result;
+    }
+
+    private Map<Object, Long> countValues(CompiledFilter<?> filter, JPASearchCore.Descriptor descriptor) {
+        var counts = new LinkedHashMap<Object, Long>();
+        if (filter.matchesNothing()) {
+            return counts;
+        }
+
+        var cb = entityManager.getCriteriaBuilder();
+        var query = cb.createTupleQuery();
+        var root = query.from(filter.getEntityClass());
+        var context = newContext(root, query);
+
+        applyRestriction(filter, null, query, context);
+        var value = getPath(cb, root, descriptor, context.getJoins(), filter.getCollectionJoins());
+        var count = filter.joinsCollections() || CompiledFilter.crossesCollection(descriptor)
+                ? cb.countDistinct(root)
+                : cb.count(root);
+        query.multiselect(value, count).groupBy(value).orderBy(cb.desc(count), cb.asc(value));
+
+        for (var row : createQuery(query, context).getResultList()) {
+            counts.put(row.get(0), row.get(1, Long.class));
+        }
+        return counts;
+    }
+
+    public <T> List<Map<String, Object>> aggregate(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable
+    ) {
+        return aggregate(filterPayload, entityClass, throwsIfNotExistsOrNotSearchable, Collections.emptySet());
+    }
+
+    /**
+     * Computes the aggregates of {@code options.aggregates} over the rows
+     * matching the filter of the payload, see {@link Aggregation}.
+     */
+    public <T> List<Map<String, Object>> aggregate(
+            JsonNode filterPayload,
+            Class<T> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        var aggregation = Aggregation.load(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        if (aggregation == null) {
+            throw new JPASearchException("No aggregates");
+        }
+        var filter = JPASearchCore.compile(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        return aggregate(filter, aggregation);
+    }
+
+    /**
+     * Computes the aggregates with one {@code GROUP BY} query, returning a row
+     * per group ordered by the groups, or a single row without groups.
+     * Aggregates of fields in a collection are over all the elements of the
+     * matching entities, also when the filter tests the collection.
+     */
+    public <T> List<Map<String, Object>> aggregate(CompiledFilter<T> filter, Aggregation aggregation) {
+        if (filter.matchesNothing() && !aggregation.getGroups().isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        var cb = entityManager.getCriteriaBuilder();
+        var query = cb.createTupleQuery();
+        var root = query.from(filter.getEntityClass());
+        var context = newContext(root, query);
+
+        if (filter.joinsCollections()) {
+            // the collections joined by the filter would repeat the entities in the aggregates
+            applyRestrictionByIds(filter, null, query, context);
+        } else {
+            applyRestriction(filter, null, query, context);
+        }
+        var groups = aggregation.toGroupExpressions(context);
+        var selections = new ArrayList<Selection<?>>(groups);
+        selections.addAll(aggregation.toAggregateExpressions(context));
+        query.multiselect(selections);
+        if (!groups.isEmpty()) {
+            var orders = new ArrayList<Order>(groups.size());
+            for (var group : groups) {
+                orders.add(cb.asc(group));
+            }
+            query.groupBy(groups).orderBy(orders);
+        }
+
+        var rows = new ArrayList<Map<String, Object>>();
+        for (var row : createQuery(query, context).getResultList()) {
+            rows.add(aggregation.toRow(row));
+        }
+        return rows;
+    }
+
+    public <T> long count(CompiledFilter<T> filter) {
+        return count(filter, null);
+    }
+
+    public long count(CompiledFilter<?> filter, KeysetCursor cursor) {
+        if (filter.matchesNothing()) {
+            return 0;
+        }
+
+        var cb = entityManager.getCriteriaBuilder();
+        var query = cb.createQuery(Long.class);
+        var root = query.from(filter.getEntityClass());
+        var context = newContext(root, query);
+
+        applyRestriction(filter, cursor, query, context);
+        query.select(query.isDistinct() || filter.joinsCollections() ? cb.countDistinct(root) : cb.count(root));
+
+        return createQuery(query, context).getSingleResult();
+    }
+
+    /**
+     * Counts the matching rows, but stops after {@code limit + 1} of them,
+     * so a result larger than the limit means there are more than
+     * {@code limit} rows.
+     */
+    private long countCapped(CompiledFilter<?> filter, KeysetCursor cursor, long limit) {
+        var query = entityManager.getCriteriaBuilder().createQuery(Object.class);
+        var root = query.from(filter.getEntityClass());
+        var context = newContext(root, query);
+
+        applyRestriction(filter, cursor, query, context);
+        query.select(root.get(EntityMetadata.idFieldOf(filter.getEntityClass()).getName()))
+                .distinct(filter.joinsCollections());
+
+        return createQuery(query, context)
+                .setMaxResults((int) Math.min(limit + 1, Integer.MAX_VALUE))
+                .getResultList()
+                .size();
+    }
+
+    private long countCached(CompiledFilter<?> filter, KeysetCursor cursor, CountStrategy countStrategy) {
+        var key = new CountKey(
+                entityManager.getEntityManagerFactory(),
+                countCacheScope,
+                filter.getEntityClass(),
+                filter.getMetadata().getEntityClasses(),
+                filter.getFingerprint(),
+                Arrays.asList(filter.getValues()),
+                cursor == null ? null : cursor.getValues()
+        );
+
+        var now = System.currentTimeMillis();
+        var cached = countCache.get(key);
+        if (cached != null && cached.expiresAt > now) {
+            return cached.count;
+        }
+
+        var count = count(filter, cursor);
+        countCache.put(key, new CachedCount(count, now + countStrategy.getTtl().toMillis()));
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> TypedQuery<T> createQuery(CompiledFilter<T> filter, KeysetCursor cursor, Sort sort) {
+        return createQuery(filter, cursor, sort, filter.getEntityClass(), context -> (Root<T>) context.getRoot());
+    }
+
+    <R> TypedQuery<R> createQuery(
+            CompiledFilter<?> filter,
+            KeysetCursor cursor,
+            Sort sort,
+            Projection projection,
+            Class<R> resultClass
+    ) {
+        return createQuery(
+                filter,
+                cursor,
+                sort,
+                resultClass,
+                context -> context.getCb().construct(
+                        resultClass,
+                        projection.toSelections(context, filter.getCollectionJoins())
+                )
+        );
+    }
+
+    TypedQuery<Tuple> createTupleQuery(CompiledFilter<?> filter, KeysetCursor cursor, Sort sort, Projection projection) {
+        return createQuery(
+                filter,
+                cursor,
+                sort,
+                Tuple.class,
+                context -> context.getCb().tuple(projection.toSelections(context, filter.getCollectionJoins()))
+        );
+    }
+
+    private <R> TypedQuery<R> createQuery(
+            CompiledFilter<?> filter,
+            KeysetCursor cursor,
+            Sort sort,
+            Class<R> resultClass,
+            Function<QueryContext, Selection<? extends R>> selection
+    ) {
+        var cb = entityManager.getCriteriaBuilder();
+        var query = cb.createQuery(resultClass);
+        var root = query.from(filter.getEntityClass());
+        var context = newContext(root, query);
+
+        if (filter.joinsCollections()) {
+            applyRestrictionByIds(filter, cursor, query, context);
+        } else {
+            applyRestriction(filter, cursor, query, context);
+        }
+        query.select(selection.apply(context));
+
+        if (sort.isSorted()) {
+            query.orderBy(toOrders(sort, root, cb));
+        }
+
+        return createQuery(query, context);
+    }
+
+    private static Projection loadProjection(
+            JsonNode filterPayload,
+            Class<?> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        var projection = Projection.load(
+                filterPayload,
+                entityClass,
+                throwsIfNotExistsOrNotSearchable,
+                searchableSubclasses
+        );
+        if (projection == null) {
+            throw new JPASearchException("No fields to select");
+        }
+        return projection;
+    }
+
+    private static List<Map<String, Object>> toMaps(List<Tuple> rows, Projection projection) {
+        var maps = new ArrayList<Map<String, Object>>(rows.size());
+        for (var row : rows) {
+            maps.add(projection.toMap(row));
+        }
+        return maps;
+    }
+
+    /**
+     * Selects the distinct ids of the matching rows, with the sort expressions
+     * which must be selected as well for {@code DISTINCT} with {@code ORDER BY}.
+     */
+    TypedQuery<Tuple> createIdQuery(CompiledFilter<?> filter, KeysetCursor cursor, Sort sort) {
+        var cb = entityManager.getCriteriaBuilder();
+        var query = cb.createTupleQuery();
+        var root = query.from(filter.getEntityClass());
+        var context = newContext(root, query);
+
+        applyRestriction(filter, cursor, query, context);
+
+        var orders = sort.isSorted() ? toOrders(sort, root, cb) : List.<Order>of();
+        var selections = new ArrayList<Selection<?>>(orders.size() + 1);
+        selections.add(root.get(EntityMetadata.idFieldOf(filter.getEntityClass()).getName()));
+        for (var order : orders) {
+            selections.add(order.getExpression());
+        }
+        query.multiselect(selections).distinct(true).orderBy(orders);
+
+        return createQuery(query, context);
+    }
+
+    /**
+     * Loads the entities with the ids, in the order of the ids. Entities that
+     * do not exist any more are left out.
+     */
+    public <T> List<T> findByIds(Class<T> entityClass, Collection<?> ids) {
+        return loadByIds(entityClass, new LinkedHashSet<>(ids), null);
+    }
+
+    /**
+     * Loads the entities of the ids in the first column of {@code rows}, in the same order.
+     */
+    private <T> List<T> loadByIds(Class<T> entityClass, List<Tuple> rows, FetchPlan fetchPlan) {
+        // a row may repeat an id if it was sorted by a collection
+        var ids = new LinkedHashSet<>();
+        for (var row : rows) {
+            ids.add(row.get(0));
+        }
+        return loadByIds(entityClass, ids, fetchPlan);
+    }
+
+    private <T> List<T> loadByIds(Class<T> entityClass, Set<?> ids, FetchPlan fetchPlan) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        var cb = entityManager.getCriteriaBuilder();
+        var query = cb.createQuery(entityClass);
+        var root = query.from(entityClass);
+        query.where(root.get(EntityMetadata.idFieldOf(entityClass).getName()).in(ids));
+
+        var util = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        var entities = new HashMap<Object, T>();
+        var typedQuery = entityManager.createQuery(query);
+        applyFetchPlan(typedQuery, fetchPlan, entityClass);
+        for (var entity : typedQuery.getResultList()) {
+            entities.put(util.getIdentifier(entity), entity);
+        }
+
+        var content = new ArrayList<T>(ids.size());
+        for (var id : ids) {
+            var entity = entities.get(id);
+            if (entity != null) {
+                content.add(entity);
+            }
+        }
+        return content;
+    }
+
+    private <T> void applyFetchPlan(TypedQuery<T> query, FetchPlan fetchPlan, Class<T> entityClass) {
+        if (fetchPlan != null) {
+            query.setHint(FetchPlan.LOAD_GRAPH_HINT, fetchPlan.toEntityGraph(entityManager, entityClass));
+        }
+    }
+
+    private static boolean isTwoPhase(JsonNode filterPayload) {
+        var options = filterPayload.get("options");
+        return options != null && options.path("twoPhase").asBoolean(false);
+    }
+
+    void applyRestriction(
+            CompiledFilter<?> filter,
+            KeysetCursor cursor,
+            CriteriaQuery<?> query,
+            QueryContext context
+    ) {
+        var predicate = filter.toPredicate(context);
+        var seek = cursor == null ? null : cursor.toPredicate(context);
+
+        if (predicate != null && seek != null) {
+            query.where(context.getCb().and(predicate, seek));
+        } else if (predicate != null) {
+            query.where(predicate);
+        } else if (seek != null) {
+            query.where(seek);
+        }
+    }
+
+    /**
+     * Restricts the query to the ids of the entities matching the filter,
+     * selected by a subquery, so that the collections joined by the filter
+     * do not repeat the entities in the rows of the query.
+     */
+    void applyRestrictionByIds(
+            CompiledFilter<?> filter,
+            KeysetCursor cursor,
+            CriteriaQuery<?> query,
+            QueryContext context
+    ) {
+        var idName = EntityMetadata.idFieldOf(filter.getEntityClass()).getName();
+        var subquery = query.subquery(Object.class);
+        var subqueryRoot = subquery.from(filter.getEntityClass());
+        subquery.select(subqueryRoot.get(idName))
+                .where(filter.toPredicate(context.forSubquery(subqueryRoot, subquery)));
+
+        var predicate = context.getRoot().get(idName).in(subquery);
+        var seek = cursor == null ? null : cursor.toPredicate(context);
+        query.where(seek == null ? predicate : context.getCb().and(predicate, seek));
+    }
+
+    QueryContext newContext(Root<?> root, CriteriaQuery<?> query) {
+        return new QueryContext(
+                entityManager.getCriteriaBuilder(),
+                root,
+                query,
+                bindParameters ? new ParameterBindings() : null
+        );
+    }
+
+    <R> TypedQuery<R> createQuery(CriteriaQuery<R> query, QueryContext context) {
+        var typedQuery = entityManager.createQuery(query);
+        if (context.getBindings() != null) {
+            context.getBindings().applyTo(typedQuery);
+        }
+        return typedQuery;
+    }
+
+    @Value
+    private static class CountKey {
+        EntityManagerFactory factory;
+        String scope;
+        Class<?> entityClass;
+        Set<Class<?>> entityClasses;
+        String fingerprint;
+        List<Object> values;
+        List<Object> cursorValues;
+    }
+
+    @Value
+    private static class CachedCount {
+        long count;
+        long expiresAt;
+    }
+}
@@ -7,12 +7,10 @@ import com.gisgro.utils.JPAFuncWithObjects;
 import javax.persistence.MappedSuperclass;
 import javax.persistence.criteria.*;
 import java.math.BigDecimal;
-import java.sql.Date;
-import java.time.Period;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.*;
 import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
 
 public class JPASearchFunctions {
     public static final JPAFuncWithExpressions<Boolean, Boolean> AND = (cb, values) -> cb.and(toPredicates(values));
@@ -50,10 +48,27 @@ public class JPASearchFunctions {
 
     public static final JPAFuncWithExpressions<String, String> LOWER = (cb, values) -> cb.lower(values[0]);
 
-    public static final JPAFuncWithObjects<Date> DATE = (root, query, cb, values, entityClass) -> {
-        var dateStr = ZonedDateTime.parse((String) values[0]).withZoneSameInstant(ZoneOffset.UTC).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
-        return cb.function("STR_TO_DATE", java.sql.Date.class, cb.literal(dateStr), cb.literal("%Y-%m-%dT%H:%i:%sZ"));
-    };
+    /**
+     * Name of the full-text predicate function of {@link #MATCH}, registered
+     * for the database by {@link com.gisgro.hibernate.FullTextFunctions}.
+     */
+    public static final String MATCH_FUNCTION = "fulltext_match";
+    public static final JPAFuncWithExpressions<String, Boolean> MATCH
+            = (cb, values) -> cb.isTrue(cb.function(MATCH_FUNCTION, Boolean.class, values[0], values[1]));
+
+    /* the temporal value operators are folded into typed values of the compared field when
+       the filter is compiled, these are only used for values not compared with a field */
+    public static final JPAFuncWithObjects<Date> DATE
+            = (root, query, cb, values, searchableFields) -> cb.literal(Date.from(ZonedDateTime.parse((String) values[0]).toInstant()));
+
+    public static final JPAFuncWithObjects<LocalDate> LOCAL_DATE
+            = (root, query, cb, values, searchableFields) -> cb.literal(LocalDate.parse((String) values[0]));
+
+    public static final JPAFuncWithObjects<LocalDateTime> LOCAL_DATE_TIME
+            = (root, query, cb, values, searchableFields) -> cb.literal(LocalDateTime.parse((String) values[0]));
+
+    public static final JPAFuncWithObjects<OffsetDateTime> OFFSET_DATE_TIME
+            = (root, query, cb, values, searchableFields) -> cb.literal(OffsetDateTime.parse((String) values[0]));
 
     public static final JPAFuncWithObjects<BigDecimal> BIG_DECIMAL = (root, query, cb, values, searchableFields) -> cb.literal(new BigDecimal((String) values[0]));
 
@@ -61,6 +76,8 @@ public class JPASearchFunctions {
 
     public static final JPAFuncWithExpressions<?, ?> FIELD = (cb, values) -> values[0]; // no-op, handled in processValue
 
+    public static final JPAFuncWithExpressions<?, ?> ANY = (cb, values) -> null; // no-op, compiled to a subquery
+
     public static final JPAFuncWithObjects<Enum> ENUM = (root, query, cb, values, searchableFields) -> {
         var className = (String) values[0];
         var valueName = (String) values[1];
@@ -80,11 +97,28 @@ public class JPASearchFunctions {
             CriteriaBuilder cb,
             Root<X> root,
             JPASearchCore.Descriptor descriptor
+    ) {
+        return getPath(cb, root, descriptor, new JoinRegistry(), JoinRegistry.CollectionJoins.SEPARATE);
+    }
+
+    /**
+     * Resolves the field path of {@code descriptor}, reusing the joins of
+     * {@code joins} for the associations already joined in the same query.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <Z, X> Expression<Z> getPath(
+            CriteriaBuilder cb,
+            From<?, X> root,
+            JPASearchCore.Descriptor descriptor,
+            JoinRegistry joins,
+            JoinRegistry.CollectionJoins collectionJoins
     ) {
         var rootClass = root.getJavaType();
         var it = descriptor.getFieldPath().iterator();
         var field = it.next();
-        Join<Z, X> path = null;
+        var prefix = new StringBuilder();
+        var shared = true;
+        Join path = null;
 
         while (true) {
             /* for each level of the field path: if the class that
@@ -98,20 +132,33 @@ public class JPASearchFunctions {
                mapped superclasses are inherited into concrete entity
                metamodels and can be accessed directly. */
 
-            //noinspection unchecked
-            var fieldClass = (Class<X>) field.getDeclaringClass();
+            var fieldClass = (Class) field.getDeclaringClass();
             var isMappedSuperclass = fieldClass.isAnnotationPresent(MappedSuperclass.class);
             var treat = !isMappedSuperclass && !fieldClass.isAssignableFrom(rootClass);
 
-            var p = (path == null
-                    ? (treat ? cb.treat(root, fieldClass) : root)
-                    : (treat ? cb.treat(path, fieldClass) : path));
+            From p = path == null ? root : path;
+            if (treat) {
+                // the root is a join when resolving inside an "any" subquery
+                p = p instanceof Root ? cb.treat((Root) p, fieldClass) : cb.treat((Join) p, fieldClass);
+            }
 
             if (!it.hasNext()) {
                 return p.get(field.getName());
             }
 
-            path = p.join(field.getName(), JoinType.LEFT);
+            if (treat) {
+                prefix.append('(').append(fieldClass.getName()).append(')');
+            }
+            prefix.append(field.getName());
+
+            // a separate collection join makes everything joined below it separate as well
+            var collection = Collection.class.isAssignableFrom(field.getType()) || Map.class.isAssignableFrom(field.getType());
+            shared &= !collection || collectionJoins == JoinRegistry.CollectionJoins.SHARED;
+
+            path = shared
+                    ? joins.join(p, prefix.toString(), field.getName())
+                    : p.join(field.getName(), JoinType.LEFT);
+            prefix.append('.');
             field = it.next();
         }
     }
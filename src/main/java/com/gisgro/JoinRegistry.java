@@ -0,0 +1,60 @@
+package com.gisgro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.gisgro.exceptions.JPASearchException;
+
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Joins created while translating one query, keyed by their path prefix
+ * (including the treat types along the path), so that all references to
+ * the same association share one join instead of each adding its own.
+ * <p>
+ * Joins to single-valued associations are always shared, as that does not
+ * change the result. For collections it does: with {@code separate} joins
+ * (the default) each reference to the collection matches any of its
+ * elements, e.g. {@code tags.name = 'a' AND tags.name = 'b'} matches an
+ * entity having both tags. With {@code shared} joins all the references
+ * must match the same element. The mode is set with the
+ * {@code options.collectionJoins} key of the payload.
+ */
+public class JoinRegistry {
+    public enum CollectionJoins {
+        SHARED,
+        SEPARATE;
+
+        public static CollectionJoins load(JsonNode filterPayload) {
+            var options = filterPayload.get("options");
+            var node = options == null ? null : options.get("collectionJoins");
+            if (node == null || node.isNull()) {
+                return SEPARATE;
+            }
+
+            for (var mode : values()) {
+                if (mode.name().equalsIgnoreCase(node.asText())) {
+                    return mode;
+                }
+            }
+            throw new JPASearchException("Invalid collectionJoins: " + node.asText());
+        }
+    }
+
+    private final Map<String, Join<?, ?>> joins = new HashMap<>();
+
+    /**
+     * Returns the join registered for {@code key}, creating it with a left
+     * join of {@code attribute} from {@code from} on the first call.
+     */
+    @SuppressWarnings("rawtypes")
+    public Join join(From<?, ?> from, String key, String attribute) {
+        return joins.computeIfAbsent(key, k -> from.join(attribute, JoinType.LEFT));
+    }
+
+    public int size() {
+        return joins.size();
+    }
+}
@@ -0,0 +1,343 @@
+package com.gisgro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.model.EntityMetadata;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Value;
+import org.apache.commons.lang3.ClassUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.apache.commons.lang3.reflect.MethodUtils;
+
+import javax.persistence.*;
+import javax.persistence.criteria.*;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.gisgro.JPASearchFunctions.getPath;
+
+/**
+ * Keyset ("seek") pagination driven by {@code options.sortKey}.
+ * <p>
+ * Cursor mode is enabled by the {@code options.cursor} key of the payload.
+ * Instead of skipping {@code pageOffset} pages, the next page is selected
+ * with a {@code (k1, k2, id) > (v1, v2, v3)} predicate built from the sort
+ * keys, where the values are those of the last row of the previous page,
+ * carried in an opaque token. The id is always added as the last sort key
+ * to break ties.
+ * <p>
+ * The seek predicate of a nullable sort key must know where the database
+ * sorts the nulls, so {@code options.nulls} is required when a sort key is
+ * nullable in the mapping, see {@link Nulls}.
+ */
+@Getter
+@AllArgsConstructor
+public class KeysetCursor {
+    private static final ObjectMapper mapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+    private final List<Key> keys;
+    /**
+     * Where the nulls of the nullable sort keys are sorted, {@code null} if no sort key is nullable.
+     */
+    private final Nulls nulls;
+    /**
+     * Sort key values of the last row of the previous page, {@code null} for the first page.
+     */
+    private final List<Object> values;
+
+    /**
+     * Where the database sorts the nulls, from {@code options.nulls}.
+     */
+    public enum Nulls {
+        /**
+         * Nulls are greater than any value: last ascending and first descending (e.g. PostgreSQL, Oracle).
+         */
+        HIGH,
+        /**
+         * Nulls are smaller than any value: first ascending and last descending (e.g. H2, MySQL, SQL Server).
+         */
+        LOW,
+        /**
+         * Nulls are first in both directions, e.g. with {@code hibernate.order_by.default_null_ordering=first}.
+         */
+        FIRST,
+        /**
+         * Nulls are last in both directions, e.g. with {@code hibernate.order_by.default_null_ordering=last}.
+         */
+        LAST;
+
+        boolean isAfterValues(boolean descending) {
+            return switch (this) {
+                case HIGH -> !descending;
+                case LOW -> descending;
+                case FIRST -> false;
+                case LAST -> true;
+            };
+        }
+    }
+
+    public static boolean isEnabled(JsonNode filterPayload) {
+        var options = filterPayload.get("options");
+        return options != null && options.has("cursor");
+    }
+
+    public static KeysetCursor load(
+            JsonNode filterPayload,
+            Class<?> entityClass,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        if (!isEnabled(filterPayload)) {
+            return null;
+        }
+
+        var metadata = EntityMetadata.of(entityClass, searchableSubclasses);
+        var sort = JPASearchCore.loadSort(
+                filterPayload,
+                metadata.getEntityClasses(),
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable
+        );
+
+        var keys = new ArrayList<Key>();
+        for (var order : sort) {
+            var descriptor = metadata.getDescriptors().get(order.getProperty());
+            if (descriptor != null) {
+                keys.add(new Key(
+                        order.getProperty(),
+                        order.isDescending(),
+                        descriptor.getFieldPath(),
+                        descriptor,
+                        isNullable(descriptor.getFieldPath())
+                ));
+            }
+        }
+
+        var idField = EntityMetadata.idFieldOf(entityClass);
+        if (keys.stream().noneMatch(k -> k.property.equals(idField.getName()))) {
+            keys.add(new Key(idField.getName(), false, List.of(idField), null, false));
+        }
+
+        var options = filterPayload.get("options");
+        var nulls = loadNulls(options.get("nulls"));
+        if (nulls == null) {
+            for (var key : keys) {
+                if (key.nullable) {
+                    throw new JPASearchException(
+                            "Sort key [" + key.property + "] is nullable: set options.nulls to where the "
+                                    + "database sorts nulls (high, low, first or last), or sort by non-null keys"
+                    );
+                }
+            }
+        }
+
+        var token = options.get("cursor");
+        return new KeysetCursor(
+                Collections.unmodifiableList(keys),
+                nulls,
+                token.isNull() || token.asText().isEmpty() ? null : decode(token.asText(), keys)
+        );
+    }
+
+    private static Nulls loadNulls(JsonNode node) {
+        if (node == null || node.isNull()) {
+            return null;
+        }
+        for (var nulls : Nulls.values()) {
+            if (nulls.name().equalsIgnoreCase(node.asText())) {
+                return nulls;
+            }
+        }
+        throw new JPASearchException("Invalid nulls: " + node);
+    }
+
+    /**
+     * Returns whether a field of the path may be null: it is not null only if
+     * it is primitive, an id, or mapped as not nullable or not optional.
+     */
+    private static boolean isNullable(List<Field> fieldPath) {
+        for (var field : fieldPath) {
+            if (field.getType().isPrimitive()
+                    || field.isAnnotationPresent(Id.class)
+                    || field.isAnnotationPresent(EmbeddedId.class)
+                    || field.isAnnotationPresent(Embedded.class)) {
+                continue;
+            }
+            var column = field.getAnnotation(Column.class);
+            var basic = field.getAnnotation(Basic.class);
+            var joinColumn = field.getAnnotation(JoinColumn.class);
+            var manyToOne = field.getAnnotation(ManyToOne.class);
+            var oneToOne = field.getAnnotation(OneToOne.class);
+            var notNull = column != null && !column.nullable()
+                    || basic != null && !basic.optional()
+                    || joinColumn != null && !joinColumn.nullable()
+                    || manyToOne != null && !manyToOne.optional()
+                    || oneToOne != null && !oneToOne.optional();
+            if (!notNull) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the seek predicate selecting the rows after the cursor, or
+     * {@code null} on the first page.
+     */
+    public Predicate toPredicate(Root<?> root, CriteriaBuilder cb) {
+        return toPredicate(new QueryContext(cb, root, null, null));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Predicate toPredicate(QueryContext context) {
+        if (values == null) {
+            return null;
+        }
+
+        var cb = context.getCb();
+        var disjuncts = new ArrayList<Predicate>();
+        var equalities = new ArrayList<Predicate>();
+
+        for (var i = 0; i < keys.size(); i++) {
+            var key = keys.get(i);
+            var path = (Expression<Comparable>) key.toExpression(context);
+            var value = values.get(i);
+
+            // the rows after the value in the sort order, and those equal to it
+            Predicate after;
+            Predicate equality;
+            var nullsAfter = nulls != null && nulls.isAfterValues(key.descending);
+            if (value == null) {
+                after = nullsAfter ? null : cb.isNotNull(path);
+                equality = cb.isNull(path);
+            } else {
+                Expression<Comparable> bound = context.value((Comparable) value);
+                after = key.descending ? cb.lessThan(path, bound) : cb.greaterThan(path, bound);
+                if (key.nullable && nullsAfter) {
+                    after = cb.or(after, cb.isNull(path));
+                }
+                equality = cb.equal(path, bound);
+            }
+
+            if (after != null) {
+                var conjuncts = new ArrayList<>(equalities);
+                conjuncts.add(after);
+                disjuncts.add(cb.and(conjuncts.toArray(new Predicate[0])));
+            }
+            equalities.add(equality);
+        }
+
+        return cb.or(disjuncts.toArray(new Predicate[0]));
+    }
+
+    /**
+     * Returns the token continuing after {@code lastRow}, which should be the
+     * last entity of the current page.
+     */
+    public String encode(Object lastRow) {
+        var token = mapper.createObjectNode();
+        var keyArray = token.putArray("k");
+        var valueArray = token.putArray("v");
+        for (var key : keys) {
+            keyArray.add(key.toSortKey());
+            valueArray.addPOJO(key.read(lastRow));
+        }
+
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mapper.writeValueAsBytes(token));
+        } catch (Exception e) {
+            throw new JPASearchException("Cannot create cursor: " + e.getMessage());
+        }
+    }
+
+    private static List<Object> decode(String token, List<Key> keys) {
+        JsonNode node;
+        try {
+            node = mapper.readTree(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new JPASearchException("Invalid cursor");
+        }
+
+        var keyArray = node.get("k");
+        var valueArray = node.get("v");
+        if (keyArray == null || valueArray == null || keyArray.size() != keys.size() || valueArray.size() != keys.size()) {
+            throw new JPASearchException("Cursor does not match the sort keys");
+        }
+
+        var values = new ArrayList<>(keys.size());
+        for (var i = 0; i < keys.size(); i++) {
+            var key = keys.get(i);
+            if (!key.toSortKey().equals(keyArray.get(i).asText())) {
+                throw new JPASearchException("Cursor does not match the sort keys");
+            }
+            var value = valueArray.get(i);
+            values.add(value.isNull() ? null : mapper.convertValue(value, ClassUtils.primitiveToWrapper(key.getType())));
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    @Value
+    public static class Key {
+        String property;
+        boolean descending;
+        List<Field> fieldPath;
+        /**
+         * Descriptor of the sort key, {@code null} for the id tie-breaker.
+         */
+        JPASearchCore.Descriptor descriptor;
+        boolean nullable;
+
+        Class<?> getType() {
+            return fieldPath.get(fieldPath.size() - 1).getType();
+        }
+
+        String toSortKey() {
+            return descending ? "-" + property : property;
+        }
+
+        Expression<?> toExpression(QueryContext context) {
+            return descriptor == null
+                    ? context.getRoot().get(property)
+                    : getPath(context.getCb(), context.getRoot(), descriptor, context.getJoins(), JoinRegistry.CollectionJoins.SEPARATE);
+        }
+
+        Object read(Object row) {
+            var value = row;
+            for (var field : fieldPath) {
+                if (value == null) {
+                    return null;
+                }
+                value = readField(value, field);
+            }
+            return value;
+        }
+
+        private Object readField(Object object, Field field) {
+            // prefer the getter, which also initializes lazy proxies
+            var name = StringUtils.capitalize(field.getName());
+            var getter = MethodUtils.getAccessibleMethod(
+                    object.getClass(),
+                    (field.getType() == boolean.class ? "is" : "get") + name
+            );
+            try {
+                return getter != null ? getter.invoke(object) : FieldUtils.readField(field, object, true);
+            } catch (ReflectiveOperationException e) {
+                throw new JPASearchException("Cannot read " + property + ": " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                // e.g. the last row is a searchable subclass without the field
+                throw new JPASearchException(
+                        "Cannot read " + property + " of " + object.getClass().getSimpleName() + ": " + e.getMessage()
+                );
+            }
+        }
+    }
+}
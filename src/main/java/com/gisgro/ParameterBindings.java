@@ -0,0 +1,70 @@
+package com.gisgro;
+
+import lombok.AllArgsConstructor;
+import org.apache.commons.lang3.ClassUtils;
+
+import javax.persistence.Query;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.ParameterExpression;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Values of a filter collected as criteria parameters while it is turned into a
+ * predicate. Binding the values instead of inlining them as literals keeps the
+ * query text identical for all filters with the same shape, so the query plan
+ * and prepared statement caches can be reused.
+ */
+public class ParameterBindings {
+    private final List<Binding<?>> bindings = new ArrayList<>();
+
+    public <V> ParameterExpression<V> bind(CriteriaBuilder cb, V value) {
+        return bind(cb, value, null);
+    }
+
+    /**
+     * Binds {@code value} as a parameter of {@code type}, e.g. the type of the
+     * field it is compared with, rather than of the runtime class of the value,
+     * which may be a subclass (an enum constant with a body) unknown to the
+     * persistence provider.
+     */
+    public <V> ParameterExpression<V> bind(CriteriaBuilder cb, V value, Class<?> type) {
+        @SuppressWarnings("unchecked")
+        var parameter = cb.parameter((Class<V>) parameterType(value, type));
+        bindings.add(new Binding<>(parameter, value));
+        return parameter;
+    }
+
+    private static Class<?> parameterType(Object value, Class<?> type) {
+        if (type != null && type != Object.class) {
+            var wrapper = ClassUtils.primitiveToWrapper(type);
+            if (wrapper.isInstance(value)) {
+                return wrapper;
+            }
+        }
+        if (value instanceof Enum<?> constant) {
+            return constant.getDeclaringClass();
+        }
+        return value.getClass();
+    }
+
+    public void applyTo(Query query) {
+        for (var binding : bindings) {
+            binding.applyTo(query);
+        }
+    }
+
+    public int size() {
+        return bindings.size();
+    }
+
+    @AllArgsConstructor
+    private static class Binding<V> {
+        private final ParameterExpression<V> parameter;
+        private final V value;
+
+        private void applyTo(Query query) {
+            query.setParameter(parameter, value);
+        }
+    }
+}
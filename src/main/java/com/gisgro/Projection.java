@@ -0,0 +1,101 @@
+package com.gisgro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.model.EntityMetadata;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import javax.persistence.Tuple;
+import javax.persistence.criteria.Selection;
+import java.util.*;
+
+import static com.gisgro.JPASearchFunctions.getPath;
+
+/**
+ * Fields selected by {@code options.fields}, so that a search returns only
+ * those columns as maps or DTOs instead of full entities.
+ * <p>
+ * The fields are validated like the sort keys: only searchable fields can
+ * be selected.
+ */
+@Getter
+@AllArgsConstructor
+public class Projection {
+    /**
+     * Selected fields by their keys, in the order of the payload.
+     */
+    private final Map<String, JPASearchCore.Descriptor> fields;
+
+    /**
+     * Returns the projection of the payload, or {@code null} if it does not select fields.
+     */
+    public static Projection load(
+            JsonNode filterPayload,
+            Class<?> entityClass,
+            boolean throwsIfNotExistsOrNotSearchable,
+            Set<Class<?>> searchableSubclasses
+    ) {
+        var options = filterPayload.get("options");
+        var fieldsNode = options == null ? null : options.get("fields");
+        if (fieldsNode == null || fieldsNode.isNull()) {
+            return null;
+        }
+
+        var keys = new ArrayList<String>();
+        if (fieldsNode.isTextual()) {
+            keys.add(fieldsNode.asText());
+        } else if (fieldsNode.isArray()) {
+            for (var itm : fieldsNode) {
+                keys.add(itm.asText());
+            }
+        } else {
+            throw new JPASearchException("Invalid fields: " + fieldsNode);
+        }
+
+        var metadata = EntityMetadata.of(entityClass, searchableSubclasses);
+        var fields = new LinkedHashMap<String, JPASearchCore.Descriptor>();
+        for (var key : keys) {
+            var descriptor = JPASearchCore.loadDescriptor(
+                    key,
+                    throwsIfNotExistsOrNotSearchable,
+                    false,
+                    false,
+                    metadata
+            );
+            if (descriptor != null) {
+                fields.put(key, descriptor);
+            }
+        }
+
+        if (fields.isEmpty()) {
+            throw new JPASearchException("No fields to select");
+        }
+
+        return new Projection(Collections.unmodifiableMap(fields));
+    }
+
+    Selection<?>[] toSelections(QueryContext context, JoinRegistry.CollectionJoins collectionJoins) {
+        var selections = new Selection<?>[fields.size()];
+        var i = 0;
+        for (var descriptor : fields.values()) {
+            selections[i++] = getPath(
+                    context.getCb(),
+                    context.getRoot(),
+                    descriptor,
+                    context.getJoins(),
+                    collectionJoins
+            );
+        }
+        return selections;
+    }
+
+    Map<String, Object> toMap(Tuple tuple) {
+        var map = new LinkedHashMap<String, Object>();
+        var i = 0;
+        for (var key : fields.keySet()) {
+            map.put(key, tuple.get(i++));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,80 @@
+package com.gisgro;
+
+import lombok.Getter;
+
+import javax.persistence.criteria.*;
+
+/**
+ * Per-query state used while a compiled filter is translated into criteria.
+ */
+@Getter
+class QueryContext {
+    private final CriteriaBuilder cb;
+    private final Root<?> root;
+    private final CriteriaQuery<?> query;
+    /**
+     * Collects filter values as parameters, or {@code null} to inline them as literals.
+     */
+    private final ParameterBindings bindings;
+    /**
+     * Where the field paths are resolved from: the root, or the collection
+     * element correlated into an {@code any} subquery.
+     */
+    private final From<?, ?> from;
+    /**
+     * Query the predicates are added to, the query or an {@code any} subquery.
+     */
+    private final AbstractQuery<?> scope;
+    /**
+     * Joins shared by all the field references of the scope.
+     */
+    private final JoinRegistry joins = new JoinRegistry();
+
+    QueryContext(CriteriaBuilder cb, Root<?> root, CriteriaQuery<?> query, ParameterBindings bindings) {
+        this(cb, root, query, bindings, root, query);
+    }
+
+    private QueryContext(
+            CriteriaBuilder cb,
+            Root<?> root,
+            CriteriaQuery<?> query,
+            ParameterBindings bindings,
+            From<?, ?> from,
+            AbstractQuery<?> scope
+    ) {
+        this.cb = cb;
+        this.root = root;
+        this.query = query;
+        this.bindings = bindings;
+        this.from = from;
+        this.scope = scope;
+    }
+
+    /**
+     * Returns a context resolving the field paths from {@code from} within
+     * {@code subquery}, sharing the parameter bindings of this context.
+     */
+    QueryContext withScope(From<?, ?> from, Subquery<?> subquery) {
+        return new QueryContext(cb, root, query, bindings, from, subquery);
+    }
+
+    /**
+     * Returns a context translating into {@code subquery} from its own
+     * {@code root}, sharing the parameter bindings of this context.
+     */
+    QueryContext forSubquery(Root<?> root, Subquery<?> subquery) {
+        return new QueryContext(cb, root, query, bindings, root, subquery);
+    }
+
+    <V> Expression<V> value(V value) {
+        return value(value, null);
+    }
+
+    /**
+     * Returns {@code value} as a literal, or as a parameter of {@code type}
+     * when the values are bound.
+     */
+    <V> Expression<V> value(V value, Class<?> type) {
+        return bindings == null ? cb.literal(value) : bindings.bind(cb, value, type);
+    }
+}
@@ -0,0 +1,96 @@
+package com.gisgro;
+
+import com.gisgro.annotations.Searchable;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.model.TrimMode;
+import lombok.AllArgsConstructor;
+import org.apache.commons.lang3.reflect.FieldUtils;
+
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Entity listener normalizing the searchable fields of an entity when it is
+ * saved, register it with {@code @EntityListeners(SearchableListener.class)}.
+ * It trims the fields searched with {@link TrimMode#INPUT}, and maintains the
+ * {@link Searchable#lowerCaseField()} of the fields.
+ */
+public class SearchableListener {
+    private static final Map<Class<?>, List<Normalization>> NORMALIZATIONS = new ConcurrentHashMap<>();
+
+    @PrePersist
+    @PreUpdate
+    public void beforeSave(Object entity) {
+        try {
+            for (var normalization : normalizations(entity.getClass())) {
+                normalization.apply(entity);
+            }
+        } catch (IllegalAccessException e) {
+            throw new JPASearchException("Cannot normalize searchable fields of " + entity.getClass().getName());
+        }
+    }
+
+    private static List<Normalization> normalizations(Class<?> entityClass) {
+        return NORMALIZATIONS.computeIfAbsent(entityClass, clazz -> {
+            var normalizations = new ArrayList<Normalization>();
+            for (var field : FieldUtils.getFieldsListWithAnnotation(clazz, Searchable.class)) {
+                var searchable = field.getAnnotation(Searchable.class);
+                if (field.getType() != String.class) {
+                    continue;
+                }
+
+                var trim = searchable.trim() && searchable.trimMode() == TrimMode.INPUT;
+                Field lowerCaseField = null;
+                if (!searchable.lowerCaseField().isEmpty()) {
+                    lowerCaseField = FieldUtils.getField(clazz, searchable.lowerCaseField(), true);
+                    if (lowerCaseField == null || lowerCaseField.getType() != String.class) {
+                        throw new JPASearchException(
+                                "Invalid lowerCaseField of [" + field.getName() + "]: "
+                                        + searchable.lowerCaseField() + " is not a String field"
+                        );
+                    }
+                }
+                if (trim || lowerCaseField != null) {
+                    normalizations.add(new Normalization(field, trim, lowerCaseField));
+                }
+            }
+            return List.copyOf(normalizations);
+        });
+    }
+
+    @AllArgsConstructor
+    private static class Normalization {
+        private final Field field;
+        /**
+         * Whether the field itself is trimmed, the lower-cased copy is trimmed whenever the field is.
+         */
+        private final boolean trim;
+        private final Field lowerCaseField;
+
+        private void apply(Object entity) throws IllegalAccessException {
+            var value = (String) FieldUtils.readField(field, entity, true);
+            if (value == null) {
+                if (lowerCaseField != null) {
+                    FieldUtils.writeField(lowerCaseField, entity, null, true);
+                }
+                return;
+            }
+
+            if (field.getAnnotation(Searchable.class).trim()) {
+                value = value.trim();
+            }
+            if (trim) {
+                FieldUtils.writeField(field, entity, value, true);
+            }
+            if (lowerCaseField != null) {
+                FieldUtils.writeField(lowerCaseField, entity, value.toLowerCase(Locale.ROOT), true);
+            }
+        }
+    }
+}
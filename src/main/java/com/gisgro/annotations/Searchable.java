@@ -1,6 +1,7 @@
 package com.gisgro.annotations;
 
 import com.gisgro.model.SearchType;
+import com.gisgro.model.TrimMode;
 
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
@@ -29,4 +30,26 @@ public @interface Searchable {
     boolean sortable() default true;
 
     boolean trim() default false;
+
+    /**
+     * Whether {@link #trim()} trims the compared values or the column. The
+     * column is trimmed by default, as {@link TrimMode#INPUT} expects the stored
+     * values to be trimmed already.
+     */
+    TrimMode trimMode() default TrimMode.COLUMN;
+
+    /**
+     * Whether the field has a full-text index, so that it can be searched with
+     * the {@code match} operator.
+     */
+    boolean fullText() default false;
+
+    /**
+     * Name of a field of the same entity holding the value of this field in
+     * lower case, e.g. a column with a case-insensitive index or maintained by
+     * {@link com.gisgro.SearchableListener}. {@code ["lower", ["field", ...]]}
+     * of this field is then compared on that column instead of wrapping this
+     * column in {@code lower()}, and the compared values are lower-cased.
+     */
+    String lowerCaseField() default "";
 }
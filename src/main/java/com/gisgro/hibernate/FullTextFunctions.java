@@ -0,0 +1,80 @@
+package com.gisgro.hibernate;
+
+import com.gisgro.JPASearchFunctions;
+import org.hibernate.boot.MetadataBuilder;
+import org.hibernate.boot.spi.MetadataBuilderContributor;
+import org.hibernate.dialect.function.SQLFunctionTemplate;
+import org.hibernate.type.StandardBasicTypes;
+
+/**
+ * Registers the SQL of the {@code match} operator, the full-text predicate of
+ * the database, as the {@value JPASearchFunctions#MATCH_FUNCTION} function of
+ * Hibernate. Use the contributor of the database, e.g.
+ * {@code spring.jpa.properties.hibernate.metadata_builder_contributor=com.gisgro.hibernate.FullTextFunctions$PostgreSQL}.
+ * Requires {@code hibernate-core} on the classpath.
+ */
+public abstract class FullTextFunctions implements MetadataBuilderContributor {
+    private final String template;
+
+    protected FullTextFunctions(String template) {
+        this.template = template;
+    }
+
+    @Override
+    public void contribute(MetadataBuilder metadataBuilder) {
+        metadataBuilder.applySqlFunction(
+                JPASearchFunctions.MATCH_FUNCTION,
+                new SQLFunctionTemplate(StandardBasicTypes.BOOLEAN, template)
+        );
+    }
+
+    /**
+     * {@code to_tsvector(config, field) @@ plainto_tsquery(config, terms)} with the text search
+     * configuration named explicitly, so that the expression is immutable and matches an index
+     * created with the same configuration:
+     * <pre>
+     * CREATE INDEX body_fts ON document USING GIN (to_tsvector('simple', body));
+     * </pre>
+     * The configuration is {@value #DEFAULT_CONFIG} by default, for another one extend this
+     * class with a no-argument constructor calling {@link #PostgreSQL(String)}.
+     */
+    public static class PostgreSQL extends FullTextFunctions {
+        public static final String DEFAULT_CONFIG = "simple";
+
+        public PostgreSQL() {
+            this(DEFAULT_CONFIG);
+        }
+
+        protected PostgreSQL(String config) {
+            super("(to_tsvector('" + checkConfig(config) + "', ?1) @@ plainto_tsquery('" + config + "', ?2))");
+        }
+
+        // inlined into the SQL
+        private static String checkConfig(String config) {
+            if (!config.matches("[A-Za-z_][A-Za-z0-9_.]*")) {
+                throw new IllegalArgumentException("Invalid text search configuration: " + config);
+            }
+            return config;
+        }
+    }
+
+    /**
+     * {@code MATCH (field) AGAINST (terms)}, indexed by a {@code FULLTEXT} index on the column.
+     */
+    public static class MySQL extends FullTextFunctions {
+        public MySQL() {
+            super("(MATCH (?1) AGAINST (?2 IN NATURAL LANGUAGE MODE) > 0)");
+        }
+    }
+
+    /**
+     * Case-insensitive {@code LIKE} for the databases without a full-text
+     * predicate usable in a {@code WHERE} clause, e.g. H2 whose full-text
+     * search is a table function. Not indexed.
+     */
+    public static class Like extends FullTextFunctions {
+        public Like() {
+            super("(lower(?1) like concat('%', lower(?2), '%'))");
+        }
+    }
+}
@@ -0,0 +1,604 @@
+package com.gisgro.lucene;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.gisgro.CompiledFilter;
+import com.gisgro.CompiledFilter.Call;
+import com.gisgro.CompiledFilter.FieldRef;
+import com.gisgro.CompiledFilter.Literal;
+import com.gisgro.CompiledFilter.Node;
+import com.gisgro.JPASearchCore;
+import com.gisgro.JPASearchExecutor;
+import com.gisgro.JPASearchFunctions;
+import com.gisgro.KeysetCursor;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.model.EntityMetadata;
+import com.gisgro.utils.ConversionUtils;
+import com.gisgro.utils.ReflectionUtils;
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.*;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+
+import javax.persistence.EntityManager;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.time.*;
+import java.time.temporal.Temporal;
+import java.util.*;
+
+/**
+ * Local Lucene index of the searchable fields of an entity class, searched
+ * with the same filter payloads as the database. Only the ids of a page are
+ * taken from the index, the entities are loaded by id with {@link #search}.
+ * <p>
+ * Each searchable field outside collections is indexed by its key: strings
+ * analyzed for {@code contains} and as is for the other operators, numbers and
+ * temporal values as points. {@code contains} matches the fields containing
+ * all the words of the value, like full-text search, instead of a substring.
+ * Strings longer than the term limit of Lucene (32766 bytes) are only
+ * matched by {@code contains}, and sorted by their prefix.
+ * Conditions with {@code null} follow the database: {@code not} does not
+ * match the rows where the field is {@code null}.
+ * <p>
+ * The index is not updated by the database, call {@link #index} and
+ * {@link #delete} when the entities change. Requires {@code lucene-core} on
+ * the classpath.
+ */
+public class LuceneIndex<T> implements Closeable {
+    private static final String ID = "_id";
+    private static final String RAW = ".raw";
+    private static final String LOWER = ".lower";
+    private static final String SORT = ".sort";
+    private static final String NULL = ".null";
+
+    private enum Kind {
+        TEXT,
+        KEYWORD,
+        LONG,
+        DOUBLE
+    }
+
+    private final Class<T> entityClass;
+    private final Field idField;
+    /**
+     * Indexed fields by key.
+     */
+    private final Map<String, JPASearchCore.Descriptor> fields = new HashMap<>();
+    private final Analyzer analyzer = new StandardAnalyzer();
+    private final IndexWriter writer;
+    private final SearcherManager searchers;
+
+    public LuceneIndex(Class<T> entityClass, Directory directory) throws IOException {
+        this.entityClass = entityClass;
+        this.idField = EntityMetadata.idFieldOf(entityClass);
+        EntityMetadata.of(entityClass, Collections.emptySet()).getDescriptors().forEach((key, descriptor) -> {
+            var path = descriptor.getFieldPath();
+            for (var i = 0; i < path.size() - 1; i++) {
+                if (Collection.class.isAssignableFrom(path.get(i).getType())) {
+                    return;
+                }
+            }
+            fields.put(key, descriptor);
+        });
+
+        this.writer = new IndexWriter(directory, new IndexWriterConfig(analyzer));
+        this.searchers = new SearcherManager(writer, null);
+    }
+
+    /**
+     * Opens (or creates) the index in a directory of the file system.
+     */
+    public static <T> LuceneIndex<T> open(Class<T> entityClass, Path path) throws IOException {
+        return new LuceneIndex<>(entityClass, FSDirectory.open(path));
+    }
+
+    /**
+     * Adds the entities, or replaces the documents of the entities with the same ids.
+     */
+    public void index(Collection<? extends T> entities) {
+        try {
+            for (var entity : entities) {
+                writer.updateDocument(new Term(ID, idOf(entity)), toDocument(entity));
+            }
+            searchers.maybeRefreshBlocking();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void index(T entity) {
+        index(List.of(entity));
+    }
+
+    public void delete(T entity) {
+        try {
+            writer.deleteDocuments(new Term(ID, idOf(entity)));
+            searchers.maybeRefreshBlocking();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Persists the changes of the index to its directory.
+     */
+    public void commit() {
+        try {
+            writer.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Page<Object> searchIds(JsonNode filterPayload) {
+        return searchIds(filterPayload, true, true);
+    }
+
+    /**
+     * Returns the page of the ids of the entities matching the payload. Cursor
+     * pagination is not supported.
+     */
+    public Page<Object> searchIds(
+            JsonNode filterPayload,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable
+    ) {
+        if (KeysetCursor.isEnabled(filterPayload)) {
+            throw new JPASearchException("Cursor pagination is not supported by the index");
+        }
+        var filter = JPASearchCore.compile(filterPayload, entityClass, throwsIfNotExistsOrNotSearchable);
+        var pageable = JPASearchCore.loadSortAndPagination(
+                filterPayload,
+                entityClass,
+                throwsIfNotSortable,
+                throwsIfNotExistsOrNotSearchable
+        );
+        var query = filter.getRoot() == null ? new MatchAllDocsQuery() : translate(filter, filter.getRoot()).matching;
+        var sort = pageable.getSort().isSorted() ? toSort(pageable.getSort()) : Sort.INDEXORDER;
+
+        try {
+            var searcher = searchers.acquire();
+            try {
+                var total = searcher.count(query);
+                var offset = (int) pageable.getOffset();
+                var ids = new ArrayList<>(pageable.getPageSize());
+                if (offset < total) {
+                    var hits = searcher.search(query, offset + pageable.getPageSize(), sort).scoreDocs;
+                    for (var i = offset; i < hits.length; i++) {
+                        var id = searcher.doc(hits[i].doc).get(ID);
+                        ids.add(ConversionUtils.convert(id, idField.getType(), ""));
+                    }
+                }
+                return new PageImpl<>(ids, pageable, total);
+            } finally {
+                searchers.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Page<T> search(JsonNode filterPayload, EntityManager entityManager) {
+        return search(filterPayload, entityManager, true, true);
+    }
+
+    /**
+     * Returns the page of the entities matching the payload, loading only the
+     * entities of the page from the database.
+     */
+    public Page<T> search(
+            JsonNode filterPayload,
+            EntityManager entityManager,
+            boolean throwsIfNotSortable,
+            boolean throwsIfNotExistsOrNotSearchable
+    ) {
+        var ids = searchIds(filterPayload, throwsIfNotSortable, throwsIfNotExistsOrNotSearchable);
+        var content = new JPASearchExecutor(entityManager).findByIds(entityClass, ids.getContent());
+        return new PageImpl<>(content, ids.getPageable(), ids.getTotalElements());
+    }
+
+    @Override
+    public void close() throws IOException {
+        searchers.close();
+        writer.close();
+    }
+
+    private String idOf(Object entity) {
+        var id = read(List.of(idField), entity);
+        if (id == null) {
+            throw new JPASearchException("Cannot index an entity without an id");
+        }
+        return id.toString();
+    }
+
+    private Document toDocument(T entity) {
+        var document = new Document();
+        document.add(new StringField(ID, idOf(entity), Store.YES));
+        fields.forEach((key, descriptor) -> {
+            var value = read(descriptor.getFieldPath(), entity);
+            if (value == null) {
+                document.add(new StringField(key + NULL, "1", Store.NO));
+                return;
+            }
+
+            switch (kindOf(descriptor)) {
+                case TEXT -> {
+                    var text = value.toString();
+                    document.add(new TextField(key, text, Store.NO));
+                    addTerms(document, key, text, true);
+                }
+                case KEYWORD -> addTerms(document, key, keyword(value), false);
+                case LONG -> {
+                    var number = toLong(value);
+                    document.add(new LongPoint(key, number));
+                    document.add(new NumericDocValuesField(key + SORT, number));
+                }
+                case DOUBLE -> {
+                    var number = ((Number) value).doubleValue();
+                    document.add(new DoublePoint(key, number));
+                    document.add(new NumericDocValuesField(key + SORT, NumericUtils.doubleToSortableLong(number)));
+                }
+            }
+        });
+        return document;
+    }
+
+    /**
+     * Adds the value as a single term, and lower-cased for text, unless it is
+     * longer than the term limit of Lucene: such values are only matched by
+     * the words of the text field, and sorted by their longest prefix within
+     * the limit.
+     */
+    private static void addTerms(Document document, String key, String text, boolean lowerCase) {
+        var bytes = new BytesRef(text);
+        if (bytes.length <= IndexWriter.MAX_TERM_LENGTH) {
+            document.add(new StringField(key + RAW, text, Store.NO));
+            if (lowerCase) {
+                var lower = text.toLowerCase(Locale.ROOT);
+                if (new BytesRef(lower).length <= IndexWriter.MAX_TERM_LENGTH) {
+                    document.add(new StringField(key + LOWER, lower, Store.NO));
+                }
+            }
+            document.add(new SortedDocValuesField(key + SORT, bytes));
+            return;
+        }
+
+        // cut at the start of a UTF-8 sequence
+        var length = IndexWriter.MAX_TERM_LENGTH;
+        while ((bytes.bytes[bytes.offset + length] & 0xC0) == 0x80) {
+            length--;
+        }
+        document.add(new SortedDocValuesField(key + SORT, new BytesRef(bytes.bytes, bytes.offset, length)));
+    }
+
+    private static Object read(List<Field> path, Object entity) {
+        Object value = entity;
+        try {
+            for (var field : path) {
+                // the fields of a lazy proxy are never set
+                value = ReflectionUtils.unproxy(value);
+                if (value == null || !field.getDeclaringClass().isInstance(value)) {
+                    return null;
+                }
+                value = FieldUtils.readField(field, value, true);
+            }
+        } catch (IllegalAccessException e) {
+            throw new JPASearchException("Cannot read field: " + e.getMessage());
+        }
+        return value;
+    }
+
+    private static Kind kindOf(JPASearchCore.Descriptor descriptor) {
+        var type = descriptor.getFieldType();
+        if (type == String.class) {
+            return Kind.TEXT;
+        } else if (type == long.class || type == int.class || type == short.class || type == byte.class
+                || type == Long.class || type == Integer.class || type == Short.class || type == Byte.class
+                || type == BigInteger.class || Temporal.class.isAssignableFrom(type) || Date.class.isAssignableFrom(type)) {
+            return Kind.LONG;
+        } else if (type == double.class || type == float.class
+                || type == Double.class || type == Float.class || type == BigDecimal.class) {
+            return Kind.DOUBLE;
+        }
+        return Kind.KEYWORD;
+    }
+
+    private static String keyword(Object value) {
+        return value instanceof Enum<?> e ? e.name() : value.toString();
+    }
+
+    /**
+     * Converts integral numbers and temporal values to the long they are indexed as.
+     */
+    private static long toLong(Object value) {
+        if (value instanceof Number number) {
+            return number.longValue();
+        } else if (value instanceof Date date) {
+            return date.getTime();
+        } else if (value instanceof LocalDate date) {
+            return date.toEpochDay();
+        } else if (value instanceof LocalDateTime dateTime) {
+            return dateTime.toInstant(ZoneOffset.UTC).toEpochMilli();
+        } else if (value instanceof LocalTime time) {
+            return time.toNanoOfDay();
+        } else if (value instanceof OffsetDateTime dateTime) {
+            return dateTime.toInstant().toEpochMilli();
+        } else if (value instanceof ZonedDateTime dateTime) {
+            return dateTime.toInstant().toEpochMilli();
+        } else if (value instanceof Instant instant) {
+            return instant.toEpochMilli();
+        } else if (value instanceof OffsetTime time) {
+            return time.toLocalTime().toNanoOfDay() - time.getOffset().getTotalSeconds() * 1_000_000_000L;
+        }
+        throw new JPASearchException("Cannot index " + value.getClass().getSimpleName() + " as a number");
+    }
+
+    private Sort toSort(org.springframework.data.domain.Sort sort) {
+        var sortFields = new ArrayList<SortField>();
+        for (var order : sort) {
+            var descriptor = fields.get(order.getProperty());
+            if (descriptor == null) {
+                throw new JPASearchException("Cannot sort by " + order.getProperty() + " in the index");
+            }
+            var kind = kindOf(descriptor);
+            var text = kind == Kind.TEXT || kind == Kind.KEYWORD;
+            var sortField = new SortField(
+                    order.getProperty() + SORT,
+                    text ? SortField.Type.STRING : SortField.Type.LONG,
+                    order.isDescending()
+            );
+            // nulls sort as the lowest values
+            if (text) {
+                sortField.setMissingValue(order.isDescending() ? SortField.STRING_LAST : SortField.STRING_FIRST);
+            } else {
+                sortField.setMissingValue(order.isDescending() ? Long.MAX_VALUE : Long.MIN_VALUE);
+            }
+            sortFields.add(sortField);
+        }
+        sortFields.add(SortField.FIELD_DOC);
+        return new Sort(sortFields.toArray(new SortField[0]));
+    }
+
+    /**
+     * Documents where a subtree is true and where it is false, the others are unknown.
+     */
+    private static class Result {
+        private final Query matching;
+        private final Query failing;
+
+        private Result(Query matching, Query failing) {
+            this.matching = matching;
+            this.failing = failing;
+        }
+    }
+
+    private Result translate(CompiledFilter<T> filter, Node node) {
+        if (!(node instanceof Call call)) {
+            throw new JPASearchException("Not resulting a predicate" + node);
+        }
+
+        var function = call.getOperator().getExprFunction();
+        var arguments = call.getArguments();
+        if (function == JPASearchFunctions.AND || function == JPASearchFunctions.OR) {
+            var and = function == JPASearchFunctions.AND;
+            var matching = new BooleanQuery.Builder();
+            var failing = new BooleanQuery.Builder();
+            for (var argument : arguments) {
+                var result = translate(filter, argument);
+                matching.add(result.matching, and ? BooleanClause.Occur.FILTER : BooleanClause.Occur.SHOULD);
+                failing.add(result.failing, and ? BooleanClause.Occur.SHOULD : BooleanClause.Occur.FILTER);
+            }
+            return new Result(matching.build(), failing.build());
+        } else if (function == JPASearchFunctions.NOT) {
+            var result = translate(filter, arguments.get(0));
+            return new Result(result.failing, result.matching);
+        }
+
+        if (arguments.isEmpty()) {
+            throw unsupported(call);
+        }
+        var lower = false;
+        var first = arguments.get(0);
+        if (first instanceof Call inner && inner.getOperator().getExprFunction() == JPASearchFunctions.LOWER
+                && inner.getArguments().size() == 1) {
+            lower = true;
+            first = inner.getArguments().get(0);
+        }
+        if (!(first instanceof FieldRef field) || field.isLowerCase() || fields.get(field.getKey()) == null
+                || fields.get(field.getKey()) != field.getDescriptor()) {
+            throw unsupported(call);
+        }
+
+        var key = field.getKey();
+        var isNull = new TermQuery(new Term(key + NULL, "1"));
+        if (function == JPASearchFunctions.NULL) {
+            return new Result(isNull, not(isNull));
+        }
+
+        var values = new ArrayList<>();
+        for (var argument : arguments.subList(1, arguments.size())) {
+            if (!(argument instanceof Literal literal) || literal.isRaw()) {
+                throw unsupported(call);
+            }
+            var value = filter.getValues()[literal.getSlot()];
+            if (value == null) {
+                // comparisons with null are unknown
+                return new Result(new MatchNoDocsQuery(), new MatchNoDocsQuery());
+            }
+            values.add(value);
+        }
+
+        var matching = lower
+                ? lowerCaseQuery(call, key, values)
+                : query(call, key, kindOf(field.getDescriptor()), values);
+        var failing = new BooleanQuery.Builder()
+                .add(new MatchAllDocsQuery(), BooleanClause.Occur.FILTER)
+                .add(matching, BooleanClause.Occur.MUST_NOT)
+                .add(isNull, BooleanClause.Occur.MUST_NOT)
+                .build();
+        return new Result(matching, failing);
+    }
+
+    private Query query(Call call, String key, Kind kind, List<Object> values) {
+        var function = call.getOperator().getExprFunction();
+        if ((function == JPASearchFunctions.CONTAINS || function == JPASearchFunctions.MATCH)
+                && kind == Kind.TEXT && values.size() == 1) {
+            return words(key, values.get(0).toString());
+        } else if (function == JPASearchFunctions.STARTSWITH && kind == Kind.TEXT && values.size() == 1) {
+            return new PrefixQuery(new Term(key + RAW, values.get(0).toString()));
+        } else if (function == JPASearchFunctions.ENDSWITH && kind == Kind.TEXT && values.size() == 1) {
+            return new WildcardQuery(new Term(key + RAW, "*" + escapeWildcards(values.get(0).toString())));
+        } else if (function == JPASearchFunctions.EQ && values.size() == 1) {
+            return equal(key, kind, values.get(0));
+        } else if (function == JPASearchFunctions.IN && !values.isEmpty()) {
+            var in = new BooleanQuery.Builder();
+            for (var value : values) {
+                in.add(equal(key, kind, value), BooleanClause.Occur.SHOULD);
+            }
+            return in.build();
+        } else if (function == JPASearchFunctions.GT && values.size() == 1) {
+            return range(key, kind, values.get(0), false, null, false);
+        } else if (function == JPASearchFunctions.GTE && values.size() == 1) {
+            return range(key, kind, values.get(0), true, null, false);
+        } else if (function == JPASearchFunctions.LT && values.size() == 1) {
+            return range(key, kind, null, false, values.get(0), false);
+        } else if (function == JPASearchFunctions.LTE && values.size() == 1) {
+            return range(key, kind, null, false, values.get(0), true);
+        } else if (function == JPASearchFunctions.BETWEEN && values.size() == 2) {
+            return range(key, kind, values.get(0), true, values.get(1), true);
+        }
+        throw unsupported(call);
+    }
+
+    /**
+     * Translates a comparison of {@code ["lower", field]}, with the value lower-cased.
+     */
+    private Query lowerCaseQuery(Call call, String key, List<Object> values) {
+        var function = call.getOperator().getExprFunction();
+        if (values.size() != 1 || kindOf(fields.get(key)) != Kind.TEXT) {
+            throw unsupported(call);
+        }
+        var value = values.get(0).toString().toLowerCase(Locale.ROOT);
+        if (function == JPASearchFunctions.EQ) {
+            return new TermQuery(new Term(key + LOWER, value));
+        } else if (function == JPASearchFunctions.CONTAINS) {
+            // the analyzer lower-cases the words
+            return words(key, value);
+        } else if (function == JPASearchFunctions.STARTSWITH) {
+            return new PrefixQuery(new Term(key + LOWER, value));
+        } else if (function == JPASearchFunctions.ENDSWITH) {
+            return new WildcardQuery(new Term(key + LOWER, "*" + escapeWildcards(value)));
+        }
+        throw unsupported(call);
+    }
+
+    private Query equal(String key, Kind kind, Object value) {
+        return switch (kind) {
+            case TEXT, KEYWORD -> new TermQuery(new Term(key + RAW, keyword(value)));
+            case LONG -> LongPoint.newExactQuery(key, toLong(value));
+            case DOUBLE -> DoublePoint.newExactQuery(key, ((Number) value).doubleValue());
+        };
+    }
+
+    private Query range(String key, Kind kind, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        switch (kind) {
+            case LONG -> {
+                var lower = from == null ? Long.MIN_VALUE : toLong(from);
+                var upper = to == null ? Long.MAX_VALUE : toLong(to);
+                if (from != null && !fromInclusive) {
+                    if (lower == Long.MAX_VALUE) {
+                        return new MatchNoDocsQuery();
+                    }
+                    lower++;
+                }
+                if (to != null && !toInclusive) {
+                    if (upper == Long.MIN_VALUE) {
+                        return new MatchNoDocsQuery();
+                    }
+                    upper--;
+                }
+                return LongPoint.newRangeQuery(key, lower, upper);
+            }
+            case DOUBLE -> {
+                var lower = from == null ? Double.NEGATIVE_INFINITY : ((Number) from).doubleValue();
+                var upper = to == null ? Double.POSITIVE_INFINITY : ((Number) to).doubleValue();
+                return DoublePoint.newRangeQuery(
+                        key,
+                        from != null && !fromInclusive ? Math.nextUp(lower) : lower,
+                        to != null && !toInclusive ? Math.nextDown(upper) : upper
+                );
+            }
+            default -> {
+                return TermRangeQuery.newStringRange(
+                        key + RAW,
+                        from == null ? null : keyword(from),
+                        to == null ? null : keyword(to),
+                        from == null || fromInclusive,
+                        to == null || toInclusive
+                );
+            }
+        }
+    }
+
+    /**
+     * Matches the documents containing all the words of {@code text}.
+     */
+    private Query words(String key, String text) {
+        var words = new BooleanQuery.Builder();
+        var empty = true;
+        try (var tokens = analyzer.tokenStream(key, text)) {
+            var term = tokens.addAttribute(CharTermAttribute.class);
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                words.add(new TermQuery(new Term(key, term.toString())), BooleanClause.Occur.FILTER);
+                empty = false;
+            }
+            tokens.end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // without words, like an empty LIKE pattern, all the values match
+        return empty ? not(new TermQuery(new Term(key + NULL, "1"))) : words.build();
+    }
+
+    private static Query not(Query query) {
+        return new BooleanQuery.Builder()
+                .add(new MatchAllDocsQuery(), BooleanClause.Occur.FILTER)
+                .add(query, BooleanClause.Occur.MUST_NOT)
+                .build();
+    }
+
+    private static String escapeWildcards(String text) {
+        var escaped = new StringBuilder(text.length());
+        for (var c : text.toCharArray()) {
+            if (c == '*' || c == '?' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    private static JPASearchException unsupported(Call call) {
+        return new JPASearchException(
+                "Operator [" + call.getOperator().getName() + "] is not supported by the Lucene index"
+        );
+    }
+}
@@ -0,0 +1,76 @@
+package com.gisgro.model;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.gisgro.exceptions.JPASearchException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Duration;
+
+/**
+ * How the total count of a paged search is computed, from {@code options.count}:
+ * <ul>
+ *     <li>{@code "exact"} (default): a {@code COUNT(*)} query</li>
+ *     <li>{@code "none"}: no count, only whether there is a next page</li>
+ *     <li>{@code {"strategy": "capped", "limit": 1000}}: counts up to the limit</li>
+ *     <li>{@code {"strategy": "cached", "ttl": 60}}: exact count, cached by filter for ttl seconds</li>
+ *     <li>{@code "estimate"}: estimate from the configured {@link com.gisgro.utils.CountEstimator},
+ *     which is required</li>
+ * </ul>
+ */
+@Getter
+@AllArgsConstructor
+public class CountStrategy {
+    public static final CountStrategy EXACT = new CountStrategy(Type.EXACT, 0, null);
+
+    public enum Type {
+        EXACT,
+        NONE,
+        CAPPED,
+        CACHED,
+        ESTIMATE
+    }
+
+    private final Type type;
+    private final long limit;
+    private final Duration ttl;
+
+    public static CountStrategy load(JsonNode filterPayload) {
+        var options = filterPayload.get("options");
+        var countNode = options == null ? null : options.get("count");
+        if (countNode == null || countNode.isNull()) {
+            return EXACT;
+        }
+
+        var strategyNode = countNode.isObject() ? countNode.get("strategy") : countNode;
+        if (strategyNode == null || !strategyNode.isTextual()) {
+            throw new JPASearchException("Invalid count strategy: " + countNode);
+        }
+
+        var type = loadType(strategyNode.asText());
+        var limitNode = countNode.get("limit");
+        var ttlNode = countNode.get("ttl");
+
+        if (type == Type.CAPPED && (limitNode == null || limitNode.asLong() <= 0)) {
+            throw new JPASearchException("Capped count requires a positive limit");
+        }
+        if (type == Type.CACHED && (ttlNode == null || ttlNode.asLong() <= 0)) {
+            throw new JPASearchException("Cached count requires a positive ttl");
+        }
+
+        return new CountStrategy(
+                type,
+                limitNode == null ? 0 : limitNode.asLong(),
+                ttlNode == null ? null : Duration.ofSeconds(ttlNode.asLong())
+        );
+    }
+
+    private static Type loadType(String name) {
+        for (var type : Type.values()) {
+            if (type.name().equalsIgnoreCase(name)) {
+                return type;
+            }
+        }
+        throw new JPASearchException("Unknown count strategy: " + name);
+    }
+}
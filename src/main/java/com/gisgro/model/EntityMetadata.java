@@ -0,0 +1,88 @@
+package com.gisgro.model;
+
+import com.gisgro.JPASearchCore;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.utils.ReflectionUtils;
+import lombok.Getter;
+import org.apache.commons.lang3.reflect.FieldUtils;
+
+import javax.persistence.Id;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolved searchable field metadata for a set of entity classes.
+ * <p>
+ * Walking the entity classes with reflection is relatively expensive, so the
+ * result is resolved once per entity class set and shared between all queries
+ * (and all threads) after that.
+ */
+@Getter
+public class EntityMetadata {
+    private static final Map<Set<Class<?>>, EntityMetadata> cache = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Field> idFields = new ConcurrentHashMap<>();
+
+    private final Set<Class<?>> entityClasses;
+    private final Map<String, List<Field>> searchableFields;
+    private final Map<String, JPASearchCore.Descriptor> descriptors;
+    /**
+     * Paths of the nested searchable associations, keyed by their dotted path.
+     */
+    private final Map<String, List<Field>> associations;
+    /**
+     * The collections of {@link #associations}.
+     */
+    private final Map<String, List<Field>> collections;
+
+    private EntityMetadata(Set<Class<?>> entityClasses) {
+        this.entityClasses = entityClasses;
+
+        var fields = ReflectionUtils.getAllSearchableFields(entityClasses);
+        var resolved = new HashMap<String, JPASearchCore.Descriptor>();
+        var nestedAssociations = new HashMap<String, List<Field>>();
+        var nestedCollections = new HashMap<String, List<Field>>();
+        fields.forEach((key, path) -> {
+            resolved.put(key, JPASearchCore.Descriptor.of(path));
+
+            var prefix = new StringBuilder();
+            for (var i = 0; i < path.size() - 1; i++) {
+                var field = path.get(i);
+                prefix.append(i == 0 ? "" : ".").append(field.getName());
+                nestedAssociations.putIfAbsent(prefix.toString(), List.copyOf(path.subList(0, i + 1)));
+                if (Collection.class.isAssignableFrom(field.getType())) {
+                    nestedCollections.putIfAbsent(prefix.toString(), List.copyOf(path.subList(0, i + 1)));
+                }
+            }
+        });
+
+        this.searchableFields = Collections.unmodifiableMap(fields);
+        this.descriptors = Collections.unmodifiableMap(resolved);
+        this.associations = Collections.unmodifiableMap(nestedAssociations);
+        this.collections = Collections.unmodifiableMap(nestedCollections);
+    }
+
+    public static EntityMetadata of(Set<Class<?>> entityClasses) {
+        var metadata = cache.get(entityClasses);
+        if (metadata != null) {
+            return metadata;
+        }
+        return cache.computeIfAbsent(Set.copyOf(entityClasses), EntityMetadata::new);
+    }
+
+    public static EntityMetadata of(Class<?> entityClass, Set<Class<?>> searchableSubclasses) {
+        HashSet<Class<?>> entityClasses = new HashSet<>(searchableSubclasses);
+        entityClasses.add(entityClass);
+        return of(entityClasses);
+    }
+
+    public static Field idFieldOf(Class<?> entityClass) {
+        return idFields.computeIfAbsent(
+                entityClass,
+                clazz -> FieldUtils.getFieldsListWithAnnotation(clazz, Id.class)
+                        .stream()
+                        .findFirst()
+                        .orElseThrow(() -> new JPASearchException("No @Id field in " + clazz.getName()))
+        );
+    }
+}
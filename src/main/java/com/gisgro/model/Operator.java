@@ -8,6 +8,7 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Getter
 @AllArgsConstructor
@@ -27,6 +28,12 @@ public class Operator {
 
     private static HashMap<String, Operator> operators = null;
 
+    /**
+     * Incremented whenever an operator is added or replaced, so that cached
+     * plans compiled against the previous operators are not used again.
+     */
+    private static final AtomicInteger version = new AtomicInteger();
+
     private static void initializeOperators() {
         if (operators != null) {
             return; // Already initialized
@@ -47,9 +54,14 @@ public class Operator {
                 new Operator("lte", JPASearchFunctions.LTE),
                 new Operator("between", JPASearchFunctions.BETWEEN),
                 new Operator("lower", JPASearchFunctions.LOWER),
+                new Operator("match", JPASearchFunctions.MATCH),
                 new Operator("date", JPASearchFunctions.DATE),
+                new Operator("localDate", JPASearchFunctions.LOCAL_DATE),
+                new Operator("localDateTime", JPASearchFunctions.LOCAL_DATE_TIME),
+                new Operator("offsetDateTime", JPASearchFunctions.OFFSET_DATE_TIME),
                 new Operator("enum", JPASearchFunctions.ENUM),
                 new Operator("field", JPASearchFunctions.FIELD),
+                new Operator("any", JPASearchFunctions.ANY),
                 new Operator("bigDecimal", JPASearchFunctions.BIG_DECIMAL),
                 new Operator("period", JPASearchFunctions.PERIOD),
                 new Operator("isNull", JPASearchFunctions.NULL),
@@ -65,6 +77,11 @@ public class Operator {
             initializeOperators();
         }
         operators.put(operator.getName(), operator);
+        version.incrementAndGet();
+    }
+
+    public static int getVersion() {
+        return version.get();
     }
 
     public static Operator load(String name) {
@@ -0,0 +1,29 @@
+package com.gisgro.model;
+
+import lombok.Getter;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+import java.util.List;
+
+/**
+ * Page whose total may be capped or estimated instead of counted exactly.
+ * Whether there is a next page is then known from the rows themselves,
+ * not from the total.
+ */
+public class SearchPage<T> extends PageImpl<T> {
+    @Getter
+    private final boolean totalExact;
+    private final boolean next;
+
+    public SearchPage(List<T> content, Pageable pageable, long total, boolean totalExact, boolean next) {
+        super(content, pageable, total);
+        this.totalExact = totalExact;
+        this.next = next;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next;
+    }
+}
@@ -0,0 +1,17 @@
+package com.gisgro.model;
+
+/**
+ * How a field with {@code @Searchable(trim = true)} is trimmed when searched.
+ */
+public enum TrimMode {
+    /**
+     * The compared values are trimmed in Java and the column is compared as
+     * is, so its indexes can be used. The stored values are expected to be
+     * trimmed, e.g. by {@link com.gisgro.SearchableListener}.
+     */
+    INPUT,
+    /**
+     * The column is wrapped in {@code TRIM()} in every comparison (default).
+     */
+    COLUMN
+}
@@ -0,0 +1,173 @@
+package com.gisgro.utils;
+
+import org.apache.commons.lang3.ClassUtils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQuery;
+import java.util.Date;
+import java.util.Set;
+import java.util.UUID;
+
+public class ConversionUtils {
+    private static final Set<Class<?>> TEMPORAL_TYPES = Set.of(
+            LocalDate.class,
+            LocalDateTime.class,
+            LocalTime.class,
+            OffsetDateTime.class,
+            OffsetTime.class,
+            ZonedDateTime.class,
+            Instant.class
+    );
+
+    /**
+     * Converts a filter value (a string, number or boolean of the payload) to
+     * {@code type}, the Java type of the field it is compared with. Temporal
+     * values are parsed with {@code datePattern}, or as ISO-8601 if it is empty.
+     * Values of types without a known conversion are returned as is.
+     *
+     * @throws IllegalArgumentException if the value cannot be converted
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static Object convert(Object value, Class<?> type, String datePattern) {
+        type = ClassUtils.primitiveToWrapper(type);
+        if (value == null || type.isInstance(value)) {
+            return value;
+        }
+
+        try {
+            if ((value instanceof TemporalAccessor || value instanceof Date)
+                    && (TEMPORAL_TYPES.contains(type) || type == Date.class)) {
+                return fromTemporal(value, type);
+            } else if (type == String.class && (value instanceof Number || value instanceof Boolean)) {
+                return value.toString();
+            } else if (Number.class.isAssignableFrom(type) && (value instanceof Number || value instanceof String)) {
+                return toNumber(new BigDecimal(value.toString().trim()), type);
+            } else if (type == Boolean.class && value instanceof String text) {
+                if (text.equalsIgnoreCase("true") || text.equalsIgnoreCase("false")) {
+                    return Boolean.valueOf(text);
+                }
+            } else if (type.isEnum() && value instanceof String text) {
+                return Enum.valueOf((Class<Enum>) type, text);
+            } else if (type == UUID.class && value instanceof String text) {
+                return UUID.fromString(text);
+            } else if (TEMPORAL_TYPES.contains(type) && value instanceof String text) {
+                return toTemporal(text, type, datePattern);
+            } else if (type == Date.class && value instanceof String text && !datePattern.isEmpty()) {
+                return new SimpleDateFormat(datePattern).parse(text);
+            } else if (!isConvertible(type)) {
+                return value;
+            }
+        } catch (RuntimeException | ParseException e) {
+            throw new IllegalArgumentException("Cannot convert [" + value + "] to " + type.getSimpleName(), e);
+        }
+
+        throw new IllegalArgumentException("Cannot convert [" + value + "] to " + type.getSimpleName());
+    }
+
+    private static boolean isConvertible(Class<?> type) {
+        return type == String.class
+                || type == Boolean.class
+                || type == UUID.class
+                || type.isEnum()
+                || Number.class.isAssignableFrom(type)
+                || TEMPORAL_TYPES.contains(type);
+    }
+
+    private static Object toNumber(BigDecimal number, Class<?> type) {
+        if (type == Long.class) {
+            return number.longValueExact();
+        } else if (type == Integer.class) {
+            return number.intValueExact();
+        } else if (type == Short.class) {
+            return number.shortValueExact();
+        } else if (type == Byte.class) {
+            return number.byteValueExact();
+        } else if (type == BigInteger.class) {
+            return number.toBigIntegerExact();
+        } else if (type == Double.class) {
+            return number.doubleValue();
+        } else if (type == Float.class) {
+            return number.floatValue();
+        } else if (type == BigDecimal.class) {
+            return number;
+        }
+        throw new IllegalArgumentException("Unsupported number type");
+    }
+
+    /**
+     * Converts between temporal types, taking local date-times as UTC.
+     */
+    private static Object fromTemporal(Object value, Class<?> type) {
+        ZonedDateTime zoned;
+        if (value instanceof Date date) {
+            zoned = date.toInstant().atZone(ZoneOffset.UTC);
+        } else if (value instanceof ZonedDateTime zonedDateTime) {
+            zoned = zonedDateTime;
+        } else if (value instanceof OffsetDateTime offsetDateTime) {
+            zoned = offsetDateTime.toZonedDateTime();
+        } else if (value instanceof Instant instant) {
+            zoned = instant.atZone(ZoneOffset.UTC);
+        } else if (value instanceof LocalDateTime localDateTime) {
+            zoned = localDateTime.atZone(ZoneOffset.UTC);
+        } else if (value instanceof LocalDate localDate) {
+            zoned = localDate.atStartOfDay(ZoneOffset.UTC);
+        } else {
+            throw new IllegalArgumentException("Unsupported temporal value");
+        }
+
+        var utc = zoned.withZoneSameInstant(ZoneOffset.UTC);
+        if (type == LocalDate.class) {
+            return utc.toLocalDate();
+        } else if (type == LocalDateTime.class) {
+            return utc.toLocalDateTime();
+        } else if (type == LocalTime.class) {
+            return utc.toLocalTime();
+        } else if (type == OffsetDateTime.class) {
+            return zoned.toOffsetDateTime();
+        } else if (type == OffsetTime.class) {
+            return zoned.toOffsetDateTime().toOffsetTime();
+        } else if (type == ZonedDateTime.class) {
+            return zoned;
+        } else if (type == Instant.class) {
+            return zoned.toInstant();
+        }
+        return Date.from(zoned.toInstant());
+    }
+
+    private static Object toTemporal(String text, Class<?> type, String datePattern) {
+        var formatter = datePattern.isEmpty() ? null : DateTimeFormatter.ofPattern(datePattern);
+        if (type == LocalDate.class) {
+            return parse(text, formatter, DateTimeFormatter.ISO_LOCAL_DATE, LocalDate::from);
+        } else if (type == LocalDateTime.class) {
+            // a date alone is the start of the day
+            if (formatter == null && text.length() == 10) {
+                return LocalDate.parse(text).atStartOfDay();
+            }
+            return parse(text, formatter, DateTimeFormatter.ISO_LOCAL_DATE_TIME, LocalDateTime::from);
+        } else if (type == LocalTime.class) {
+            return parse(text, formatter, DateTimeFormatter.ISO_LOCAL_TIME, LocalTime::from);
+        } else if (type == OffsetDateTime.class) {
+            return parse(text, formatter, DateTimeFormatter.ISO_OFFSET_DATE_TIME, OffsetDateTime::from);
+        } else if (type == OffsetTime.class) {
+            return parse(text, formatter, DateTimeFormatter.ISO_OFFSET_TIME, OffsetTime::from);
+        } else if (type == ZonedDateTime.class) {
+            return parse(text, formatter, DateTimeFormatter.ISO_ZONED_DATE_TIME, ZonedDateTime::from);
+        }
+        return Instant.parse(text);
+    }
+
+    private static <T extends TemporalAccessor> T parse(
+            String text,
+            DateTimeFormatter formatter,
+            DateTimeFormatter isoFormatter,
+            TemporalQuery<T> query
+    ) {
+        return (formatter == null ? isoFormatter : formatter).parse(text, query);
+    }
+}
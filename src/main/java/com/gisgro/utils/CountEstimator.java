@@ -0,0 +1,14 @@
+package com.gisgro.utils;
+
+import com.gisgro.CompiledFilter;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Estimates the number of rows matching a filter, e.g. from the database
+ * statistics or the query planner. Returns {@code null} if no estimate
+ * is available for the filter, in which case the rows are counted exactly.
+ */
+public interface CountEstimator {
+    Long estimate(EntityManager entityManager, CompiledFilter<?> filter);
+}
@@ -6,6 +6,7 @@ import com.gisgro.exceptions.JPASearchException;
 import org.apache.commons.lang3.reflect.FieldUtils;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.WildcardType;
 import java.util.*;
@@ -83,4 +84,52 @@ public class ReflectionUtils {
 
         return type;
     }
+
+    private static final boolean HIBERNATE = isPresent("org.hibernate.Hibernate");
+
+    /**
+     * Returns the entity behind a Hibernate proxy, initializing it, or the
+     * object itself. The fields of a proxy are not those of the entity.
+     */
+    public static Object unproxy(Object object) {
+        return HIBERNATE && object != null ? HibernateProxies.unproxy(object) : object;
+    }
+
+    /**
+     * Returns a copy of the entity with the same field values, created with its no-argument constructor.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T shallowCopy(T entity) {
+        var source = unproxy(entity);
+        try {
+            var constructor = source.getClass().getDeclaredConstructor();
+            constructor.setAccessible(true);
+            var copy = constructor.newInstance();
+            for (var field : FieldUtils.getAllFields(source.getClass())) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    field.set(copy, field.get(source));
+                }
+            }
+            return (T) copy;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new JPASearchException("Cannot copy " + source.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static boolean isPresent(String className) {
+        try {
+            Class.forName(className, false, ReflectionUtils.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    // loaded only if Hibernate is on the classpath
+    private static class HibernateProxies {
+        private static Object unproxy(Object object) {
+            return org.hibernate.Hibernate.unproxy(object);
+        }
+    }
 }
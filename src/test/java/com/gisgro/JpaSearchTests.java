@@ -2,24 +2,37 @@ package com.gisgro;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gisgro.exceptions.InvalidFieldException;
+import com.gisgro.exceptions.JPASearchException;
+import com.gisgro.lucene.LuceneIndex;
+import com.gisgro.model.EntityMetadata;
 import com.gisgro.model.Operator;
+import com.gisgro.model.SearchPage;
+import com.gisgro.model.SearchType;
 import com.gisgro.utils.JPAFuncWithObjects;
 import lombok.SneakyThrows;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.hibernate.Session;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.transaction.TestTransaction;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import javax.persistence.criteria.JoinType;
 import java.math.BigDecimal;
 import java.time.*;
 import java.util.*;
 
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
 
 
@@ -29,7 +42,9 @@ import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
 @TestPropertySource(properties = {
         "spring.jpa.show-sql=true",
         "logging.level.org.hibernate.SQL=DEBUG",
-        "logging.level.org.hibernate.type.descriptor.sql.BasicBinder=TRACE"
+        "logging.level.org.hibernate.type.descriptor.sql.BasicBinder=TRACE",
+        "spring.jpa.properties.hibernate.generate_statistics=true",
+        "spring.jpa.properties.hibernate.metadata_builder_contributor=com.gisgro.hibernate.FullTextFunctions$Like"
 })
 public class JpaSearchTests {
     ObjectMapper mapper = new ObjectMapper();
@@ -48,6 +63,10 @@ public class JpaSearchTests {
     private TestCategoryRepository testCategoryRepository;
     @Autowired
     private TestEntityWithCategoryRepository testEntityWithCategoryRepository;
+    @Autowired
+    private TestOrderRepository testOrderRepository;
+    @PersistenceContext
+    private EntityManager entityManager;
 
     private void setup() {
         var ent2 = new TestEntity2(
@@ -172,6 +191,18 @@ public class JpaSearchTests {
         testEntity4Repository.save(new TestEntity4(0L, "parentBar", "bar", foo));
     }
 
+    private void setupOrders() {
+        var first = new TestOrder();
+        first.setCustomer("alice");
+        first.setPriority(2);
+        testOrderRepository.save(first.addLine("apple", 3).addLine("pear", 1).addLine("apple", 5));
+
+        var second = new TestOrder();
+        second.setCustomer("bob");
+        second.setPriority(1);
+        testOrderRepository.save(second.addLine("pear", 2));
+    }
+
     private void setupMappedSuperclass() {
         var category1 = testCategoryRepository.save(
             new TestCategory(0L, "office rentals", "Office space rental contracts")
@@ -207,6 +238,11 @@ public class JpaSearchTests {
         );
     }
 
+    @SneakyThrows
+    private <T> CompiledFilter<T> compiledFrom(String filterString, Class<T> clazz) {
+        return JPASearchCore.compile(mapper.readTree(filterString), clazz, true);
+    }
+
     private <T> PageRequest pageRequestFrom(String filterString, Class<T> clazz) {
         return pageRequestFrom(filterString, clazz, Collections.emptySet());
     }
@@ -324,14 +360,6 @@ public class JpaSearchTests {
                 }
                 """;
 
-        /*
-             H2 does not support STR_TO_DATE function, so can't test this
-
-        ["gt", "date1", ["date", "2018-04-26T15:41:49Z"]],
-        ["gte", "date2", ["date", "2018-04-26T15:41:49Z"]],
-
-        */
-
         List<TestEntity> result = testEntityRepository.findAll(specificationFrom(filterString, TestEntity.class));
 
         assertThat(result).hasSize(1);
@@ -711,4 +739,1052 @@ public class JpaSearchTests {
         assertThat(result.get(0).getTitle()).isEqualTo("Contract A");
         assertThat(result.get(0).getCategory().getDescription()).contains("rental");
     }
+
+    @Test
+    public void testMetadataIsCached() {
+        var metadata = EntityMetadata.of(TestEntity.class, Collections.emptySet());
+
+        assertThat(EntityMetadata.of(new HashSet<>(Set.of(TestEntity.class)))).isSameAs(metadata);
+        assertThat(metadata.getDescriptors()).containsKeys("primitiveInteger", "nested.string", "testEnum");
+        assertThat(metadata.getDescriptors().get("integerString").getSearchType()).isEqualTo(SearchType.INTEGER);
+        assertThat(metadata.getDescriptors().get("wrapperLong").getSearchType()).isEqualTo(SearchType.LONG);
+        assertThat(metadata.getDescriptors().get("testEnum").getFieldType()).isEqualTo(TestEnum.class);
+        assertThat(metadata.getDescriptors().get("nested.string").getFieldPath()).hasSize(2);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testCompiledFilterIsReusable() {
+        setup2();
+        var payload = mapper.readTree("""
+                {"filter": ["gte", ["field", "primitiveInteger"], 6],
+                "options": {
+                  "sortKey": ["primitiveInteger"],
+                  "pageSize": 1,
+                  "pageOffset": 0
+                }
+                }
+                """);
+
+        var compiled = JPASearchCore.compile(payload, TestEntity.class, true);
+        var pageRequest = JPASearchCore.loadSortAndPagination(payload, TestEntity.class, true, true);
+
+        Page<TestEntity> first = testEntityRepository.findAll(JPASearchCore.specification(compiled), pageRequest);
+        Page<TestEntity> second = testEntityRepository.findAll(JPASearchCore.specification(compiled), pageRequest.next());
+
+        assertThat(first.getTotalElements()).isEqualTo(2);
+        assertThat(first.getContent().get(0).getPrimitiveInteger()).isEqualTo(6);
+        assertThat(second.getContent().get(0).getPrimitiveInteger()).isEqualTo(7);
+    }
+
+    @Test
+    public void testCompileValidatesFields() {
+        assertThatThrownBy(() -> JPASearchCore.compile(
+                mapper.readTree("""
+                        {"filter": ["eq", ["field", "notSearchable"], 6]}
+                        """),
+                TestEntity.class,
+                true
+        )).isInstanceOf(InvalidFieldException.class);
+    }
+
+    @Test
+    public void testBoundParametersReuseQueryPlan() {
+        setup2();
+        var executor = new JPASearchExecutor(entityManager);
+        var statistics = entityManager.unwrap(Session.class).getSessionFactory().getStatistics();
+
+        List<TestEntity> first = executor.findAll(compiledFrom("""
+                {"filter": ["eq", ["field", "primitiveInteger"], 6]}
+                """, TestEntity.class));
+        var hits = statistics.getQueryPlanCacheHitCount();
+        List<TestEntity> second = executor.findAll(compiledFrom("""
+                {"filter": ["eq", ["field", "primitiveInteger"], 7]}
+                """, TestEntity.class));
+
+        assertThat(first).hasSize(1);
+        assertThat(second).hasSize(1);
+        assertThat(second.get(0).getPrimitiveInteger()).isEqualTo(7);
+        assertThat(statistics.getQueryPlanCacheHitCount()).isGreaterThan(hits);
+    }
+
+    @Test
+    public void testExecutorPaging() {
+        setup2();
+        var executor = new JPASearchExecutor(entityManager);
+        var filterString = """
+                {"filter": ["gte", ["field", "primitiveInteger"], 6],
+                "options": {
+                  "sortKey": ["-primitiveInteger"],
+                  "pageSize": 1,
+                  "pageOffset": 1
+                }
+                }
+                """;
+
+        Page<TestEntity> result = executor.findAll(
+                compiledFrom(filterString, TestEntity.class),
+                pageRequestFrom(filterString, TestEntity.class)
+        );
+        assertThat(result.getTotalElements()).isEqualTo(2);
+        assertThat(result.getContent().get(0).getPrimitiveInteger()).isEqualTo(6);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testPlanCacheByShape() {
+        setup2();
+        var cache = new FilterPlanCache(1);
+
+        var six = cache.compile(mapper.readTree("""
+                {"filter": ["and", ["eq", ["field", "primitiveInteger"], 6], ["eq", ["field", "testEnum"], ["enum", "TestEnum", "VALUE1"]]]}
+                """), TestEntity.class, true, Collections.emptySet());
+        var seven = cache.compile(mapper.readTree("""
+                {"filter": ["and", ["eq", ["field", "primitiveInteger"], 7], ["eq", ["field", "testEnum"], ["enum", "TestEnum", "VALUE2"]]]}
+                """), TestEntity.class, true, Collections.emptySet());
+
+        assertThat(seven.getRoot()).isSameAs(six.getRoot());
+        assertThat(cache.getStatistics().getHits()).isEqualTo(1);
+        assertThat(cache.getStatistics().getMisses()).isEqualTo(1);
+
+        List<TestEntity> result = testEntityRepository.findAll(JPASearchCore.specification(seven));
+        assertThat(result).hasSize(1);
+        assertThat(result.get(0).getPrimitiveInteger()).isEqualTo(7);
+
+        cache.compile(mapper.readTree("""
+                {"filter": ["gt", ["field", "primitiveInteger"], 6]}
+                """), TestEntity.class, true, Collections.emptySet());
+        assertThat(cache.getStatistics().getEvictions()).isEqualTo(1);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testPlanCacheAfterAddOperator() {
+        setup2();
+        var cache = new FilterPlanCache(10);
+        var payload = mapper.readTree("""
+                {"filter": ["ownFunc3", "nested1"]}
+                """);
+
+        Operator.addOperator(new Operator("ownFunc3", (JPAFuncWithObjects<Boolean>) (root, query, cb, values, searchableFields) ->
+                cb.equal(root.join("nested", JoinType.LEFT).get("string"), values[0])));
+        var first = cache.compile(payload, TestEntity.class, true, Collections.emptySet());
+
+        Operator.addOperator(new Operator("ownFunc3", (JPAFuncWithObjects<Boolean>) (root, query, cb, values, searchableFields) ->
+                cb.notEqual(root.join("nested", JoinType.LEFT).get("string"), values[0])));
+        var second = cache.compile(payload, TestEntity.class, true, Collections.emptySet());
+
+        assertThat(second.getRoot()).isNotSameAs(first.getRoot());
+        assertThat(cache.getStatistics().getMisses()).isEqualTo(2);
+        List<TestEntity> result = testEntityRepository.findAll(JPASearchCore.specification(second));
+        assertThat(result).extracting(TestEntity::getPrimitiveInteger).containsExactly(7);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testKeysetPagination() {
+        setup2();
+        var filterTemplate = """
+                {"filter": ["gte", ["field", "primitiveInteger"], 6],
+                "options": {
+                  "sortKey": ["-nested.string", "primitiveInteger"],
+                  "pageSize": 1,
+                  "nulls": "low",
+                  "cursor": %s
+                }
+                }
+                """;
+
+        var firstPayload = filterTemplate.formatted("null");
+        Page<TestEntity> first = testEntityRepository.findAll(
+                specificationFrom(firstPayload, TestEntity.class),
+                pageRequestFrom(firstPayload, TestEntity.class)
+        );
+        assertThat(first.getContent()).hasSize(1);
+        assertThat(first.getContent().get(0).getPrimitiveInteger()).isEqualTo(7);
+
+        var cursor = JPASearchCore.nextCursor(
+                first.getContent(),
+                mapper.readTree(firstPayload),
+                TestEntity.class,
+                true,
+                true
+        );
+        var secondPayload = filterTemplate.formatted("\"" + cursor + "\"");
+        Page<TestEntity> second = testEntityRepository.findAll(
+                specificationFrom(secondPayload, TestEntity.class),
+                pageRequestFrom(secondPayload, TestEntity.class)
+        );
+        assertThat(second.getContent()).hasSize(1);
+        assertThat(second.getContent().get(0).getPrimitiveInteger()).isEqualTo(6);
+
+        cursor = JPASearchCore.nextCursor(
+                second.getContent(),
+                mapper.readTree(secondPayload),
+                TestEntity.class,
+                true,
+                true
+        );
+        var thirdPayload = filterTemplate.formatted("\"" + cursor + "\"");
+        Page<TestEntity> third = testEntityRepository.findAll(
+                specificationFrom(thirdPayload, TestEntity.class),
+                pageRequestFrom(thirdPayload, TestEntity.class)
+        );
+        assertThat(third.getContent()).isEmpty();
+    }
+
+    @Test
+    @SneakyThrows
+    public void testKeysetCursorOfSubclassWithoutSortKey() {
+        setup4();
+        var payload = mapper.readTree("""
+                {"options": {"sortKey": ["payload"], "nulls": "low", "cursor": null}}
+                """);
+        var last = testEntity4Repository.findAll();
+        assertThatThrownBy(() -> JPASearchCore.nextCursor(
+                last,
+                payload,
+                ParentEntity.class,
+                true,
+                true,
+                Set.of(TestEntity3.class, TestEntity4.class)
+        )).isInstanceOf(JPASearchException.class);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testCountStrategies() {
+        setup2();
+        var executor = new JPASearchExecutor(entityManager);
+        var filterTemplate = """
+                {"filter": ["gte", ["field", "primitiveInteger"], 6],
+                "options": {
+                  "sortKey": ["-primitiveInteger"],
+                  "pageSize": 1,
+                  "count": %s
+                }
+                }
+                """;
+
+        var slice = executor.search(mapper.readTree(filterTemplate.formatted("\"none\"")), TestEntity.class, true, true);
+        assertThat(slice).isNotInstanceOf(Page.class);
+        assertThat(slice.getContent()).hasSize(1);
+        assertThat(slice.hasNext()).isTrue();
+
+        var capped = (SearchPage<TestEntity>) executor.search(
+                mapper.readTree(filterTemplate.formatted("{\"strategy\": \"capped\", \"limit\": 1}")),
+                TestEntity.class,
+                true,
+                true
+        );
+        assertThat(capped.getTotalElements()).isEqualTo(1);
+        assertThat(capped.isTotalExact()).isFalse();
+        assertThat(capped.getContent()).hasSize(1);
+        assertThat(capped.hasNext()).isTrue();
+
+        var estimatePayload = mapper.readTree(filterTemplate.formatted("\"estimate\""));
+        assertThatThrownBy(() -> executor.search(estimatePayload, TestEntity.class, true, true))
+                .isInstanceOf(JPASearchException.class);
+        executor.setCountEstimator((em, filter) -> 1L);
+        var estimated = (SearchPage<TestEntity>) executor.search(estimatePayload, TestEntity.class, true, true);
+        assertThat(estimated.getTotalElements()).isEqualTo(1);
+        assertThat(estimated.isTotalExact()).isFalse();
+        assertThat(estimated.hasNext()).isTrue();
+
+        var cachedPayload = mapper.readTree(filterTemplate.formatted("{\"strategy\": \"cached\", \"ttl\": 60}"));
+        var misses = JPASearchExecutor.getCountCacheStatistics().getMisses();
+        var cached = (Page<TestEntity>) executor.search(cachedPayload, TestEntity.class, true, true);
+        assertThat(cached.getTotalElements()).isEqualTo(2);
+        executor.search(cachedPayload, TestEntity.class, true, true);
+        assertThat(JPASearchExecutor.getCountCacheStatistics().getMisses()).isEqualTo(misses + 1);
+        // counts are not shared across scopes
+        executor.setCountCacheScope("other-tenant");
+        executor.search(cachedPayload, TestEntity.class, true, true);
+        assertThat(JPASearchExecutor.getCountCacheStatistics().getMisses()).isEqualTo(misses + 2);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testJoinsAreReused() {
+        setup2();
+        var filterString = """
+                {"filter": ["or",
+                  ["eq", ["field", "nested.string"], "a"],
+                  ["contains", ["field", "nested.string"], "b"],
+                  ["startswith", ["field", "nested.string"], "c"]
+                ]}
+                """;
+
+        var cb = entityManager.getCriteriaBuilder();
+        var query = cb.createQuery(TestEntity.class);
+        var root = query.from(TestEntity.class);
+        query.where(specificationFrom(filterString, TestEntity.class).toPredicate(root, query, cb));
+        assertThat(root.getJoins()).hasSize(1);
+
+        assertThatThrownBy(() -> compiledFrom("{\"options\": {\"collectionJoins\": \"some\"}}", TestEntity.class))
+                .isInstanceOf(JPASearchException.class);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testAnyCollection() {
+        setupOrders();
+        var filterString = """
+                {"filter": ["any", "lines", ["and",
+                  ["eq", ["field", "product"], "apple"],
+                  ["gte", ["field", "quantity"], 3]
+                ]]}
+                """;
+
+        List<TestOrder> result = testOrderRepository.findAll(
+                specificationFrom(filterString, TestOrder.class)
+        );
+        assertThat(result).hasSize(1);
+        assertThat(result.get(0).getCustomer()).isEqualTo("alice");
+
+        var executor = new JPASearchExecutor(entityManager);
+        var filter = compiledFrom("""
+                {"filter": ["not", ["any", "lines", ["eq", ["field", "product"], "apple"]]]}
+                """, TestOrder.class);
+        assertThat(executor.count(filter)).isEqualTo(1);
+
+        assertThatThrownBy(() -> compiledFrom("{\"filter\": [\"any\", \"customer\"]}", TestOrder.class))
+                .isInstanceOf(InvalidFieldException.class);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testStream() {
+        setup2();
+        var executor = new JPASearchExecutor(entityManager);
+        executor.setFetchSize(1);
+        executor.setClearInterval(1);
+        var filterString = """
+                {"filter": ["gte", ["field", "primitiveInteger"], 6],
+                "options": {
+                  "sortKey": ["-primitiveInteger"],
+                  "pageSize": 1
+                }
+                }
+                """;
+
+        try (var stream = executor.stream(mapper.readTree(filterString), TestEntity.class, true, true)) {
+            assertThat(stream.map(TestEntity::getPrimitiveInteger)).containsExactly(7, 6);
+        }
+
+        // alice matches three lines and bob one, each order is streamed once
+        setupOrders();
+        var ordersString = """
+                {"filter": ["or",
+                  ["eq", ["field", "lines.product"], "apple"],
+                  ["eq", ["field", "lines.product"], "pear"]
+                ],
+                "options": {"sortKey": ["customer"]}
+                }
+                """;
+        try (var stream = executor.stream(mapper.readTree(ordersString), TestOrder.class, true, true)) {
+            assertThat(stream.map(TestOrder::getCustomer)).containsExactly("alice", "bob");
+        }
+    }
+
+    public record IntegerAndNested(Integer primitiveInteger, String nestedString) {
+    }
+
+    @Test
+    @SneakyThrows
+    public void testSparseFields() {
+        setup2();
+        var executor = new JPASearchExecutor(entityManager);
+        var payload = mapper.readTree("""
+                {"filter": ["gte", ["field", "primitiveInteger"], 6],
+                "options": {
+                  "sortKey": ["-primitiveInteger"],
+                  "pageSize": 10,
+                  "fields": ["primitiveInteger", "nested.string"]
+                }
+                }
+                """);
+
+        var maps = executor.searchFields(payload, TestEntity.class, true, true);
+        assertThat(maps.getContent()).hasSize(2);
+        assertThat(maps.getContent().get(0)).containsOnlyKeys("primitiveInteger", "nested.string");
+        assertThat(maps.getContent().get(0).get("primitiveInteger")).isEqualTo(7);
+        assertThat((String) maps.getContent().get(0).get("nested.string")).startsWith("nested");
+
+        var records = executor.searchFields(
+                payload,
+                TestEntity.class,
+                IntegerAndNested.class,
+                true,
+                true,
+                Collections.emptySet()
+        );
+        assertThat(records.getContent()).extracting(IntegerAndNested::primitiveInteger).containsExactly(7, 6);
+
+        assertThatThrownBy(() -> executor.searchFields(
+                mapper.readTree("{\"options\": {\"pageSize\": 10, \"fields\": [\"string\"]}}"),
+                TestEntity.class,
+                true,
+                true
+        )).isInstanceOf(InvalidFieldException.class);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testTwoPhasePaging() {
+        setupOrders();
+        var executor = new JPASearchExecutor(entityManager);
+
+        // alice has two apple lines, which must not repeat her order or count it twice
+        var joined = (Page<TestOrder>) executor.search(mapper.readTree("""
+                {"filter": ["eq", ["field", "lines.product"], "apple"],
+                "options": {"pageSize": 10}
+                }
+                """), TestOrder.class, true, true);
+        assertThat(joined.getContent()).extracting(TestOrder::getCustomer).containsExactly("alice");
+        assertThat(joined.getTotalElements()).isEqualTo(1);
+
+        // the other entry points select each order once as well
+        var appleFilter = compiledFrom("""
+                {"filter": ["eq", ["field", "lines.product"], "apple"]}
+                """, TestOrder.class);
+        assertThat(executor.findAll(appleFilter, Sort.by("customer")))
+                .extracting(TestOrder::getCustomer).containsExactly("alice");
+        assertThat(executor.findAll(appleFilter, PageRequest.of(0, 10)).getContent())
+                .extracting(TestOrder::getCustomer).containsExactly("alice");
+        var projection = Projection.load(mapper.readTree("""
+                {"options": {"fields": ["customer"]}}
+                """), TestOrder.class, true, Collections.emptySet());
+        assertThat(executor.findFields(appleFilter, projection, Sort.unsorted()))
+                .containsExactly(Map.of("customer", "alice"));
+        var fields = (Page<Map<String, Object>>) executor.searchFields(mapper.readTree("""
+                {"filter": ["eq", ["field", "lines.product"], "apple"],
+                "options": {"fields": ["customer"], "pageSize": 10}
+                }
+                """), TestOrder.class, true, true);
+        assertThat(fields.getContent()).containsExactly(Map.of("customer", "alice"));
+        assertThat(fields.getTotalElements()).isEqualTo(1);
+
+        var sorted = executor.search(mapper.readTree("""
+                {"options": {"sortKey": "-customer", "pageSize": 1, "pageOffset": 1, "twoPhase": true}}
+                """), TestOrder.class, true, true);
+        assertThat(sorted.getContent()).extracting(TestOrder::getCustomer).containsExactly("alice");
+    }
+
+    @Test
+    @SneakyThrows
+    public void testFetchPlan() {
+        setupMappedSuperclass();
+        entityManager.flush();
+        entityManager.clear();
+        var util = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        var filterString = """
+                {"filter": ["contains", ["field", "title"], "Contract"],
+                "options": {"pageSize": 10, "fetch": ["category"]}
+                }
+                """;
+
+        Page<TestEntityWithCategory> page = testEntityWithCategoryRepository.findAll(
+                specificationFrom(filterString, TestEntityWithCategory.class),
+                pageRequestFrom(filterString, TestEntityWithCategory.class)
+        );
+        assertThat(page.getTotalElements()).isEqualTo(2);
+        assertThat(page.getContent()).allMatch(e -> util.isLoaded(e.getCategory()));
+
+        entityManager.clear();
+        var executor = new JPASearchExecutor(entityManager);
+        var slice = executor.search(mapper.readTree(filterString), TestEntityWithCategory.class, true, true);
+        assertThat(slice.getContent()).hasSize(2).allMatch(e -> util.isLoaded(e.getCategory()));
+
+        assertThatThrownBy(() -> specificationFrom("""
+                {"options": {"fetch": ["title"]}}
+                """, TestEntityWithCategory.class)).isInstanceOf(InvalidFieldException.class);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testFilterNormalization() {
+        setup2();
+        var executor = new JPASearchExecutor(entityManager);
+
+        var merged = compiledFrom("""
+                {"filter": ["or",
+                  ["eq", ["field", "primitiveInteger"], 6],
+                  ["or", ["not", ["not", ["eq", ["field", "primitiveInteger"], 7]]]],
+                  ["eq", ["field", "primitiveInteger"], 6]
+                ]}
+                """, TestEntity.class);
+        assertThat(((CompiledFilter.Call) merged.getRoot()).getOperator().getName()).isEqualTo("in");
+        assertThat(executor.findAll(merged)).hasSize(2);
+
+        var contradiction = compiledFrom("""
+                {"filter": ["and",
+                  ["eq", ["field", "primitiveInteger"], 6],
+                  ["gte", ["field", "primitiveLong"], 0],
+                  ["eq", ["field", "primitiveInteger"], 7]
+                ]}
+                """, TestEntity.class);
+        assertThat(contradiction.matchesNothing()).isTrue();
+
+        var statistics = entityManager.unwrap(Session.class).getSessionFactory().getStatistics();
+        var queries = statistics.getQueryExecutionCount();
+        assertThat(executor.findAll(contradiction)).isEmpty();
+        assertThat(executor.count(contradiction)).isZero();
+        assertThat(statistics.getQueryExecutionCount()).isEqualTo(queries);
+
+        // a contradiction under "not" is not folded
+        assertThat(compiledFrom("""
+                {"filter": ["not", ["and",
+                  ["eq", ["field", "primitiveInteger"], 6],
+                  ["eq", ["field", "primitiveInteger"], 7]
+                ]]}
+                """, TestEntity.class).matchesNothing()).isFalse();
+
+        // equal numbers of different scales are not a contradiction
+        var scales = compiledFrom("""
+                {"filter": ["and",
+                  ["eq", ["field", "bigDecimal"], "1.0"],
+                  ["eq", ["field", "bigDecimal"], "1.00"]
+                ]}
+                """, TestEntity.class);
+        assertThat(scales.matchesNothing()).isFalse();
+    }
+
+    @Test
+    @SneakyThrows
+    public void testValuesConvertedToFieldType() {
+        setup();
+        var filter = compiledFrom("""
+                {"filter": ["and",
+                  ["eq", ["field", "primitiveLong"], 1],
+                  ["eq", ["field", "bigDecimal"], 1.23],
+                  ["eq", ["field", "wrapperLong"], "10"],
+                  ["lte", ["field", "localDate"], "2999-01-01"]
+                ]}
+                """, TestEntity.class);
+        assertThat(filter.getValues()).containsExactly(1L, new BigDecimal("1.23"), 10L, LocalDate.of(2999, 1, 1));
+        assertThat(new JPASearchExecutor(entityManager).findAll(filter)).hasSize(1);
+
+        assertThatThrownBy(() -> compiledFrom("""
+                {"filter": ["eq", ["field", "primitiveLong"], 1.5]}
+                """, TestEntity.class)).isInstanceOf(InvalidFieldException.class);
+        assertThatThrownBy(() -> compiledFrom("""
+                {"filter": ["eq", ["field", "wrapperInteger"], "abc"]}
+                """, TestEntity.class)).isInstanceOf(InvalidFieldException.class);
+    }
+
+    @Test
+    public void testTypedTemporalValues() {
+        setup();
+        var filter = compiledFrom("""
+                {"filter": ["and",
+                  ["gt", ["field", "date1"], ["date", "2018-04-26T15:41:49Z"]],
+                  ["lte", ["field", "localDate"], ["localDate", "2999-01-01"]],
+                  ["lte", ["field", "localDateTime"], ["offsetDateTime", "2999-01-01T00:00:00+02:00"]]
+                ]}
+                """, TestEntity.class);
+        assertThat(filter.getValues()).containsExactly(
+                Date.from(Instant.parse("2018-04-26T15:41:49Z")),
+                LocalDate.of(2999, 1, 1),
+                LocalDateTime.of(2998, 12, 31, 22, 0)
+        );
+        assertThat(new JPASearchExecutor(entityManager).findAll(filter)).hasSize(1);
+
+        assertThatThrownBy(() -> compiledFrom("""
+                {"filter": ["gt", ["field", "date1"], ["date", "2018-04-26"]]}
+                """, TestEntity.class)).isInstanceOf(InvalidFieldException.class);
+    }
+
+    @Test
+    public void testInListPaddingAndChunking() {
+        setup();
+        var filter = compiledFrom("""
+                {"filter": ["in", ["field", "primitiveLong"], 5, 4, 3, 2, 1]}
+                """, TestEntity.class);
+
+        var cb = entityManager.getCriteriaBuilder();
+        var query = cb.createQuery(TestEntity.class);
+        var root = query.from(TestEntity.class);
+        var bindings = new ParameterBindings();
+        query.where(filter.toPredicate(root, query, cb, bindings));
+        assertThat(bindings.size()).isEqualTo(8);
+        var typedQuery = entityManager.createQuery(query);
+        bindings.applyTo(typedQuery);
+        assertThat(typedQuery.getResultList()).hasSize(1);
+
+        var maxSize = InLists.getMaxSize();
+        try {
+            InLists.setMaxSize(2);
+            var chunked = cb.createQuery(TestEntity.class);
+            root = chunked.from(TestEntity.class);
+            bindings = new ParameterBindings();
+            chunked.where(filter.toPredicate(root, chunked, cb, bindings));
+            assertThat(bindings.size()).isEqualTo(5);
+            typedQuery = entityManager.createQuery(chunked);
+            bindings.applyTo(typedQuery);
+            assertThat(typedQuery.getResultList()).hasSize(1);
+        } finally {
+            InLists.setMaxSize(maxSize);
+        }
+    }
+
+    @Test
+    public void testBindEnumConstantWithBody() {
+        setup2();
+        var filter = compiledFrom("""
+                {"filter": ["in", ["field", "testEnum"], "VALUE3", "VALUE2"]}
+                """, TestEntity.class);
+
+        var cb = entityManager.getCriteriaBuilder();
+        var query = cb.createQuery(TestEntity.class);
+        var root = query.from(TestEntity.class);
+        var bindings = new ParameterBindings();
+        query.where(filter.toPredicate(root, query, cb, bindings));
+        var typedQuery = entityManager.createQuery(query);
+        bindings.applyTo(typedQuery);
+        assertThat(typedQuery.getResultList()).extracting(TestEntity::getPrimitiveInteger).containsExactly(7);
+    }
+
+    @Test
+    public void testLowerCaseField() {
+        setupOrders();
+        var order = new TestOrder();
+        order.setCustomer("Carol");
+        testOrderRepository.save(order);
+        assertThat(order.getCustomerLowerCase()).isEqualTo("carol");
+
+        var filterString = """
+                {"filter": ["or",
+                  ["eq", ["lower", ["field", "customer"]], "ALICE"],
+                  ["startsWith", ["lower", ["field", "customer"]], "CAR"]
+                ]}
+                """;
+        var filter = compiledFrom(filterString, TestOrder.class);
+        assertThat(filter.getValues()).containsExactly("alice", "car");
+
+        var cb = entityManager.getCriteriaBuilder();
+        var query = cb.createQuery(TestOrder.class);
+        var root = query.from(TestOrder.class);
+        query.select(root).where(filter.toPredicate(root, query, cb));
+        assertThat(entityManager.createQuery(query).getResultList()).hasSize(2);
+    }
+
+    @Test
+    public void testTrimInput() {
+        var order = new TestOrder();
+        order.setCustomer("alice");
+        order.setReference("  REF-1 ");
+        testOrderRepository.save(order);
+        assertThat(order.getReference()).isEqualTo("REF-1");
+
+        var filter = compiledFrom("""
+                {"filter": ["or",
+                  ["eq", ["field", "reference"], " REF-1  "],
+                  ["startsWith", ["field", "reference"], " REF-2"]
+                ]}
+                """, TestOrder.class);
+        assertThat(filter.getValues()).containsExactly("REF-1", "REF-2");
+
+        var cb = entityManager.getCriteriaBuilder();
+        var query = cb.createQuery(TestOrder.class);
+        var root = query.from(TestOrder.class);
+        query.select(root).where(filter.toPredicate(root, query, cb));
+        assertThat(entityManager.createQuery(query).getResultList()).hasSize(1);
+    }
+
+    @Test
+    public void testInMemoryMatchesQuery() {
+        setup2();
+        setupOrders();
+        var entityFilters = List.of(
+                "[\"eq\", [\"field\", \"primitiveInteger\"], 6]",
+                "[\"in\", [\"field\", \"primitiveInteger\"], 5, 7]",
+                "[\"not\", [\"eq\", [\"field\", \"wrapperInteger\"], 5]]",
+                "[\"isNull\", [\"field\", \"wrapperInteger\"]]",
+                "[\"or\", [\"gt\", [\"field\", \"primitiveInteger\"], 6], [\"startsWith\", [\"field\", \"nested.string\"], \"nested1\"]]",
+                "[\"contains\", [\"lower\", [\"field\", \"nested.string\"]], \"ED_\"]",
+                "[\"contains\", [\"lower\", [\"field\", \"nested.string\"]], \"ed_\"]",
+                "[\"between\", [\"field\", \"bigDecimal\"], 1, 2]",
+                "[\"eq\", [\"field\", \"bigDecimal\"], [\"bigDecimal\", \"1.230\"]]",
+                "[\"eq\", [\"field\", \"testEnum\"], [\"enum\", \"TestEnum\", \"VALUE2\"]]",
+                "[\"and\", [\"lte\", [\"field\", \"primitiveInteger\"], 7], [\"not\", [\"endsWith\", [\"field\", \"nested.string\"], \"2\"]]]"
+        );
+        var entities = testEntityRepository.findAll();
+        for (var filter : entityFilters) {
+            var payload = "{\"filter\": " + filter + "}";
+            var matcher = compiledFrom(payload, TestEntity.class).toMatcher();
+            assertThat(entities.stream().filter(matcher).map(TestEntity::getId))
+                    .as(filter)
+                    .containsExactlyInAnyOrderElementsOf(
+                            testEntityRepository.findAll(specificationFrom(payload, TestEntity.class))
+                                    .stream().map(TestEntity::getId).toList()
+                    );
+        }
+
+        var orderFilters = List.of(
+                "[\"any\", \"lines\", [\"and\", [\"eq\", [\"field\", \"product\"], \"apple\"], [\"gte\", [\"field\", \"quantity\"], 3]]]",
+                "[\"not\", [\"any\", \"lines\", [\"eq\", [\"field\", \"product\"], \"apple\"]]]",
+                "[\"any\", \"lines\"]"
+        );
+        var orders = testOrderRepository.findAll();
+        for (var filter : orderFilters) {
+            var payload = "{\"filter\": " + filter + "}";
+            var matcher = compiledFrom(payload, TestOrder.class).toMatcher();
+            assertThat(orders.stream().filter(matcher).map(TestOrder::getId))
+                    .as(filter)
+                    .containsExactlyInAnyOrderElementsOf(
+                            testOrderRepository.findAll(specificationFrom(payload, TestOrder.class))
+                                    .stream().map(TestOrder::getId).toList()
+                    );
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void testInMemoryStore() {
+        setup2();
+        var store = new InMemoryStore<>(TestEntity.class, testEntityRepository.findAll());
+        assertThat(store.size()).isEqualTo(2);
+
+        var payload = mapper.readTree("""
+                {"filter": ["and",
+                  ["gte", ["field", "primitiveInteger"], 6],
+                  ["not", ["eq", ["field", "nested.string"], "nested3"]],
+                  ["contains", ["field", "nested.string"], "nested"]
+                ],
+                "options": {"pageSize": 1, "pageOffset": 0, "sortKey": "-primitiveInteger"}}
+                """);
+        var page = store.search(payload);
+        assertThat(page.getTotalElements()).isEqualTo(2);
+        assertThat(page.getContent()).extracting(TestEntity::getPrimitiveInteger).containsExactly(7);
+
+        var notNull = compiledFrom("""
+                {"filter": ["not", ["eq", ["field", "wrapperInteger"], 5]]}
+                """, TestEntity.class);
+        assertThat(store.findAll(notNull)).isEmpty();
+        // the conditions evaluated row by row are built once per filter
+        assertThat(notNull.condition(notNull.getRoot())).isSameAs(notNull.condition(notNull.getRoot()));
+
+        var cursorPayload = mapper.readTree("""
+                {"options": {"sortKey": "-primitiveInteger", "cursor": null}}
+                """);
+        assertThatThrownBy(() -> store.search(cursorPayload)).isInstanceOf(JPASearchException.class);
+        // an unknown field has no value, instead of throwing, when not asked to throw
+        assertThat(store.search(mapper.readTree("""
+                {"filter": ["eq", ["field", "unknownField"], 1]}
+                """), false, false).getTotalElements()).isZero();
+
+        var removed = page.getContent().get(0);
+        store.remove(removed);
+        assertThat(store.search(payload).getContent()).extracting(TestEntity::getPrimitiveInteger).containsExactly(6);
+
+        var orders = new InMemoryStore<>(TestOrder.class, List.of());
+        orders.register();
+        try {
+            var bob = compiledFrom("""
+                    {"filter": ["eq", ["field", "customer"], "bob"]}
+                    """, TestOrder.class);
+
+            // applied only when the transaction commits
+            setupOrders();
+            entityManager.flush();
+            assertThat(orders.size()).isZero();
+            TestTransaction.flagForRollback();
+            TestTransaction.end();
+            assertThat(orders.size()).isZero();
+
+            TestTransaction.start();
+            setupOrders();
+            TestTransaction.flagForCommit();
+            TestTransaction.end();
+            assertThat(orders.size()).isEqualTo(2);
+            var stored = orders.findAll(bob);
+            assertThat(stored).hasSize(1);
+
+            // the store keeps copies, unaffected by later changes of the entities
+            TestTransaction.start();
+            var managed = testOrderRepository.findById(stored.get(0).getId()).orElseThrow();
+            managed.setCustomer("carol");
+            assertThat(orders.findAll(bob)).extracting(TestOrder::getCustomer).containsExactly("bob");
+
+            testOrderRepository.deleteAll();
+            TestTransaction.flagForCommit();
+            TestTransaction.end();
+            assertThat(orders.size()).isZero();
+            TestTransaction.start();
+        } finally {
+            orders.unregister();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void testLuceneIndex() {
+        setup2();
+        try (var index = new LuceneIndex<>(TestEntity.class, new ByteBuffersDirectory())) {
+            index.index(testEntityRepository.findAll());
+
+            var payload = mapper.readTree("""
+                    {"filter": ["and",
+                      ["contains", ["field", "nested.string"], "NESTED2"],
+                      ["gte", ["field", "primitiveInteger"], 6],
+                      ["not", ["eq", ["field", "testEnum"], "VALUE1"]]
+                    ],
+                    "options": {"pageSize": 10, "pageOffset": 0, "sortKey": "-primitiveInteger"}}
+                    """);
+            var page = index.search(payload, entityManager);
+            assertThat(page.getTotalElements()).isEqualTo(1);
+            assertThat(page.getContent()).extracting(TestEntity::getPrimitiveInteger).containsExactly(7);
+
+            var all = index.searchIds(mapper.readTree("""
+                    {"options": {"pageSize": 1, "pageOffset": 1, "sortKey": "primitiveInteger"}}
+                    """));
+            assertThat(all.getTotalElements()).isEqualTo(2);
+            assertThat(all.getContent()).hasSize(1);
+            assertThatThrownBy(() -> index.searchIds(mapper.readTree("""
+                    {"options": {"sortKey": "primitiveInteger", "cursor": null}}
+                    """))).isInstanceOf(JPASearchException.class);
+
+            index.delete(page.getContent().get(0));
+            assertThat(index.searchIds(payload).getTotalElements()).isZero();
+        }
+    }
+
+    @Test
+    public void testMatch() {
+        setupOrders();
+        List<TestOrder> result = testOrderRepository.findAll(specificationFrom("""
+                {"filter": ["match", ["field", "customer"], "ALI"]}
+                """, TestOrder.class));
+        assertThat(result).extracting(TestOrder::getCustomer).containsExactly("alice");
+
+        assertThatThrownBy(() -> compiledFrom("""
+                {"filter": ["match", ["field", "reference"], "REF"]}
+                """, TestOrder.class)).isInstanceOf(InvalidFieldException.class);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testFacets() {
+        setupOrders();
+        var executor = new JPASearchExecutor(entityManager);
+
+        var facets = executor.facets(mapper.readTree("""
+                {"filter": ["eq", ["field", "customer"], "alice"],
+                 "options": {"facets": ["customer", "lines.product"]}}
+                """), TestOrder.class, true);
+        assertThat(facets.get("customer")).containsExactly(Map.entry("alice", 1L), Map.entry("bob", 1L));
+        assertThat(facets.get("lines.product")).containsExactly(Map.entry("apple", 1L), Map.entry("pear", 1L));
+
+        var unfiltered = executor.facets(mapper.readTree("""
+                {"options": {"facets": "lines.product"}}
+                """), TestOrder.class, true);
+        assertThat(unfiltered.get("lines.product")).containsExactly(Map.entry("pear", 2L), Map.entry("apple", 1L));
+
+        assertThatThrownBy(() -> executor.facets(mapper.readTree("""
+                {"options": {"facets": ["customerLowerCase"]}}
+                """), TestOrder.class, true)).isInstanceOf(InvalidFieldException.class);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testAggregate() {
+        setup2();
+        var executor = new JPASearchExecutor(entityManager);
+
+        var byMonth = executor.aggregate(mapper.readTree("""
+                {"filter": ["gte", ["field", "primitiveInteger"], 6],
+                 "options": {
+                   "groupBy": [{"field": "localDate", "bucket": "month"}],
+                   "aggregates": {"count": ["count"], "total": ["sum", "primitiveInteger"], "max": ["max", "primitiveInteger"]}
+                 }}
+                """), TestEntity.class, true);
+        assertThat(byMonth).hasSize(1);
+        assertThat(byMonth.get(0).get("localDate")).isEqualTo(LocalDate.now().withDayOfMonth(1));
+        assertThat(byMonth.get(0).get("count")).isEqualTo(2L);
+        assertThat(((Number) byMonth.get(0).get("total")).longValue()).isEqualTo(13);
+        assertThat(byMonth.get(0).get("max")).isEqualTo(7);
+
+        var byEnum = executor.aggregate(mapper.readTree("""
+                {"options": {"groupBy": "testEnum", "aggregates": {"min": ["min", "primitiveInteger"]}}}
+                """), TestEntity.class, true);
+        assertThat(byEnum).extracting(row -> row.get("testEnum")).containsExactly(TestEnum.VALUE1, TestEnum.VALUE2);
+        assertThat(byEnum).extracting(row -> row.get("min")).containsExactly(6, 7);
+
+        assertThatThrownBy(() -> executor.aggregate(mapper.readTree("""
+                {"options": {"aggregates": {"total": ["sum", "fieldName"]}}}
+                """), TestEntity.class, true)).isInstanceOf(InvalidFieldException.class);
+        assertThatThrownBy(() -> executor.aggregate(mapper.readTree("""
+                {"options": {"groupBy": {"field": "dateString", "bucket": "day"}, "aggregates": {"count": ["count"]}}}
+                """), TestEntity.class, true)).isInstanceOf(InvalidFieldException.class);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testAggregateOverCollections() {
+        setupOrders();
+        var executor = new JPASearchExecutor(entityManager);
+
+        // alice matches with two of her lines, her priority is summed once
+        var rows = executor.aggregate(mapper.readTree("""
+                {"filter": ["eq", ["field", "lines.product"], "apple"],
+                 "options": {"aggregates": {"count": ["count"], "priority": ["sum", "priority"]}}}
+                """), TestOrder.class, true);
+        assertThat(rows.get(0).get("count")).isEqualTo(1L);
+        assertThat(((Number) rows.get(0).get("priority")).longValue()).isEqualTo(2);
+
+        var perCustomer = executor.aggregate(mapper.readTree("""
+                {"filter": ["eq", ["field", "lines.product"], "apple"],
+                 "options": {"groupBy": "customer", "aggregates": {"count": ["count"], "quantity": ["sum", "lines.quantity"]}}}
+                """), TestOrder.class, true);
+        assertThat(perCustomer).hasSize(1);
+        assertThat(perCustomer.get(0).get("count")).isEqualTo(1L);
+        assertThat(((Number) perCustomer.get(0).get("quantity")).longValue()).isEqualTo(9);
+
+        assertThatThrownBy(() -> executor.aggregate(mapper.readTree("""
+                {"options": {"aggregates": {"priority": ["sum", "priority"], "quantity": ["sum", "lines.quantity"]}}}
+                """), TestOrder.class, true)).isInstanceOf(InvalidFieldException.class);
+    }
+
+    @Test
+    @SneakyThrows
+    public void testFetchCollection() {
+        setupOrders();
+        entityManager.flush();
+        entityManager.clear();
+        var util = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        var filterString = """
+                {"options": {"pageSize": 1, "pageOffset": 0, "sortKey": "customer", "fetch": ["lines"]}}
+                """;
+
+        var slice = new JPASearchExecutor(entityManager).search(mapper.readTree(filterString), TestOrder.class, true, true);
+        assertThat(slice.getContent()).hasSize(1).allMatch(o -> util.isLoaded(o, "lines"));
+        assertThat(slice.getContent().get(0).getLines()).hasSize(3);
+        assertThat(((Page<TestOrder>) slice).getTotalElements()).isEqualTo(2);
+
+        // a specification leaves the collection out instead of paging the fetched rows in memory
+        Page<TestOrder> page = testOrderRepository.findAll(
+                specificationFrom(filterString, TestOrder.class),
+                pageRequestFrom(filterString, TestOrder.class)
+        );
+        assertThat(page.getContent()).extracting(TestOrder::getCustomer).containsExactly("alice");
+        assertThat(page.getTotalElements()).isEqualTo(2);
+    }
+
+    @Test
+    public void testInMemoryLazyAssociation() {
+        setupMappedSuperclass();
+        entityManager.flush();
+        entityManager.clear();
+        var util = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+
+        var entities = testEntityWithCategoryRepository.findAll();
+        assertThat(entities).noneMatch(e -> util.isLoaded(e.getCategory()));
+
+        var matcher = compiledFrom("""
+                {"filter": ["eq", ["field", "category.name"], "office rentals"]}
+                """, TestEntityWithCategory.class).toMatcher();
+        assertThat(entities.stream().filter(matcher)).extracting(TestEntityWithCategory::getTitle)
+                .containsExactly("Contract A");
+    }
+
+    @Test
+    public void testInMemoryIncomparableValues() {
+        setup2();
+        var entities = testEntityRepository.findAll();
+
+        // a number and a non-numeric string cannot be compared: unknown, so neither matches
+        var greater = compiledFrom("""
+                {"filter": ["gt", ["field", "primitiveInteger"], ["field", "fieldName"]]}
+                """, TestEntity.class).toMatcher();
+        var notGreater = compiledFrom("""
+                {"filter": ["not", ["gt", ["field", "primitiveInteger"], ["field", "fieldName"]]]}
+                """, TestEntity.class).toMatcher();
+        assertThat(entities.stream().filter(greater)).isEmpty();
+        assertThat(entities.stream().filter(notGreater)).isEmpty();
+    }
+
+    @Test
+    @SneakyThrows
+    public void testLuceneIndexLazyAssociation() {
+        setupMappedSuperclass();
+        entityManager.flush();
+        entityManager.clear();
+        var util = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+
+        var entities = testEntityWithCategoryRepository.findAll();
+        assertThat(entities).noneMatch(e -> util.isLoaded(e.getCategory()));
+        var contractA = entities.stream().filter(e -> e.getTitle().equals("Contract A")).findFirst().orElseThrow();
+
+        try (var index = new LuceneIndex<>(TestEntityWithCategory.class, new ByteBuffersDirectory())) {
+            index.index(entities);
+            var found = index.searchIds(mapper.readTree("""
+                    {"filter": ["eq", ["field", "category.name"], "office rentals"]}
+                    """));
+            assertThat(found.getContent()).containsExactly(contractA.getId());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void testLuceneIndexLargeText() {
+        setup2();
+        try (var index = new LuceneIndex<>(TestEntity.class, new ByteBuffersDirectory())) {
+            var entities = testEntityRepository.findAll();
+            // longer than the term limit of 32766 bytes, in multi-byte characters
+            entities.get(0).setFieldName("needle " + "ä".repeat(20000));
+            index.index(entities);
+
+            var found = index.searchIds(mapper.readTree("""
+                    {"filter": ["contains", ["field", "fieldName"], "needle"],
+                    "options": {"pageSize": 10, "pageOffset": 0, "sortKey": "fieldName"}}
+                    """));
+            assertThat(found.getContent()).containsExactly(entities.get(0).getId());
+
+            var sorted = index.searchIds(mapper.readTree("""
+                    {"options": {"pageSize": 10, "pageOffset": 0, "sortKey": "fieldName"}}
+                    """));
+            assertThat(sorted.getContent()).containsExactly(entities.get(1).getId(), entities.get(0).getId());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void testKeysetPaginationWithNulls() {
+        setupOrders();
+        var unprioritized = new TestOrder();
+        unprioritized.setCustomer("carol");
+        testOrderRepository.save(unprioritized);
+
+        // H2 sorts nulls low: first ascending, last descending
+        for (var sortKey : List.of("priority", "-priority")) {
+            var filterTemplate = """
+                    {"options": {
+                      "sortKey": ["%s"],
+                      "pageSize": 1,
+                      "nulls": "low",
+                      "cursor": %s
+                    }}
+                    """;
+            var customers = new ArrayList<String>();
+            String cursor = null;
+            do {
+                var payload = filterTemplate.formatted(sortKey, cursor == null ? "null" : "\"" + cursor + "\"");
+                Page<TestOrder> page = testOrderRepository.findAll(
+                        specificationFrom(payload, TestOrder.class),
+                        pageRequestFrom(payload, TestOrder.class)
+                );
+                page.getContent().forEach(order -> customers.add(order.getCustomer()));
+                cursor = JPASearchCore.nextCursor(page.getContent(), mapper.readTree(payload), TestOrder.class, true, true);
+            } while (cursor != null && customers.size() < 10);
+
+            assertThat(customers).containsExactly(
+                    sortKey.startsWith("-") ? new String[]{"alice", "bob", "carol"} : new String[]{"carol", "bob", "alice"}
+            );
+        }
+
+        assertThatThrownBy(() -> specificationFrom("""
+                {"options": {"sortKey": ["priority"], "cursor": null}}
+                """, TestOrder.class)).isInstanceOf(JPASearchException.class);
+    }
 }
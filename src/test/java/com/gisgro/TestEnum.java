@@ -1,5 +1,8 @@
 package com.gisgro;
 
 public enum TestEnum {
-    VALUE1, VALUE2, VALUE3;
+    VALUE1, VALUE2,
+    // a constant with a body is an instance of an anonymous subclass
+    VALUE3 {
+    };
 }
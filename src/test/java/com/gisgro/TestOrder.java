@@ -0,0 +1,50 @@
+package com.gisgro;
+
+import com.gisgro.annotations.NestedSearchable;
+import com.gisgro.annotations.Searchable;
+import com.gisgro.model.TrimMode;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test entity with a searchable collection, used to test the "any" operator.
+ */
+@Entity
+@EntityListeners({SearchableListener.class, InMemoryStoreListener.class})
+@Table(name = "test_orders")
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class TestOrder {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Searchable(lowerCaseField = "customerLowerCase", fullText = true)
+    private String customer;
+
+    private String customerLowerCase;
+
+    @Searchable(trim = true, trimMode = TrimMode.INPUT)
+    private String reference;
+
+    @Searchable
+    private Integer priority;
+
+    @OneToMany(mappedBy = "order", cascade = CascadeType.ALL)
+    @NestedSearchable
+    private List<TestOrderLine> lines = new ArrayList<>();
+
+    public TestOrder addLine(String product, int quantity) {
+        lines.add(new TestOrderLine(null, product, quantity, this));
+        return this;
+    }
+}
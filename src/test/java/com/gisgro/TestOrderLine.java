@@ -0,0 +1,32 @@
+package com.gisgro;
+
+import com.gisgro.annotations.Searchable;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.*;
+
+@Entity
+@Table(name = "test_order_lines")
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class TestOrderLine {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Searchable
+    private String product;
+
+    @Searchable
+    private Integer quantity;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "order_id")
+    private TestOrder order;
+}
@@ -0,0 +1,7 @@
+package com.gisgro;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+
+public interface TestOrderRepository extends JpaRepository<TestOrder, Long>, JpaSpecificationExecutor<TestOrder> {
+}